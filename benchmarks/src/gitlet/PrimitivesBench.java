@@ -0,0 +1,125 @@
+package gitlet;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static gitlet.Utils.*;
+
+/**
+ * Benchmarks of the hashing, encoding and storage primitives the
+ * commands are built on, on SIZE bytes of random content.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrimitivesBench {
+
+    @Param({"1024", "1048576"})
+    public int size;
+
+    private File dir;
+    private File file;
+    private byte[] content;
+    private byte[] edited;
+    private byte[] delta;
+    private String id;
+    private Commit commit;
+    private byte[] encodedCommit;
+    private ObjectStore store;
+    private TreeStore trees;
+
+    @Setup(Level.Trial)
+    public void createContent() {
+        Random random = new Random(42);
+        content = new byte[size];
+        random.nextBytes(content);
+        edited = content.clone();
+        for (int i = 0; i < 8; i += 1) {
+            edited[random.nextInt(size)] ^= 1;
+        }
+        delta = Delta.create(content, edited);
+        id = sha1(content);
+
+        dir = SyntheticRepo.tempDir("gitlet-bench-primitives");
+        file = join(dir, "content");
+        writeContents(file, (Object) content);
+        store = new ObjectStore(join(dir, "objects"), null);
+        store.write(id, file);
+
+        // a commit tracking a thousand files.
+        Map<String, String> blobs = new HashMap<>();
+        for (int i = 0; i < 1000; i += 1) {
+            blobs.put(SyntheticRepo.fileName(i), sha1(SyntheticRepo.fileName(i)));
+        }
+        trees = new TreeStore(new ObjectStore(join(dir, "trees"), null));
+        commit = new Commit("benchmark", List.of(new Commit()), trees.fromBlobs(blobs), trees);
+        commit.getId();
+        encodedCommit = commit.encode();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteContent() {
+        SyntheticRepo.delete(dir);
+    }
+
+    @Benchmark
+    public String sha1Bytes() {
+        return sha1(content);
+    }
+
+    @Benchmark
+    public String sha1File() {
+        return sha1(file);
+    }
+
+    @Benchmark
+    public byte[] encodeCommit() {
+        return commit.encode();
+    }
+
+    @Benchmark
+    public Commit decodeCommit() {
+        return Commit.decode(commit.getId(), encodedCommit, trees);
+    }
+
+    @Benchmark
+    public Map<String, String> flattenTree() {
+        return new TreeStore(trees.getStore()).flatten(commit.getTreeId());
+    }
+
+    @Benchmark
+    public byte[] readObject() {
+        return store.read(id);
+    }
+
+    @Benchmark
+    public byte[] createDelta() {
+        return Delta.create(content, edited);
+    }
+
+    @Benchmark
+    public byte[] applyDelta() {
+        return Delta.apply(content, delta);
+    }
+}
@@ -0,0 +1,235 @@
+package gitlet;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static gitlet.Utils.*;
+
+/**
+ * <pre>
+ * Benchmarks of the Repository commands on a synthetic repository, see
+ * SyntheticRepo for the meaning of the parameters.
+ *
+ * Every invocation works on a new Repository, as every run of gitlet.Main
+ * does, so nothing is cached in memory from one invocation to the next;
+ * but the *Warm benchmarks, which reuse one Repository, as a long-lived
+ * process would, with its object cache.
+ * Commands that change the repository are undone (or their input redone)
+ * before each invocation, outside of the measurement. Every Repository is
+ * closed once its command ends, releasing its locks, as Main.run does.
+ * <pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RepositoryBench {
+
+    @Param({"1000"})
+    public int files;
+
+    @Param({"1024"})
+    public int fileSize;
+
+    @Param({"100"})
+    public int depth;
+
+    @Param({"4"})
+    public int branches;
+
+    /** The working directory of the repository. */
+    private File dir;
+
+    /** The tip of master once generated. */
+    private String masterTip;
+
+    /** The Repository the *Warm benchmarks share. */
+    private Repository warm;
+
+    /** An empty repository with the synthetic one as remote "origin". */
+    private File local;
+
+    private PrintStream stdout;
+
+    private final Random random = new Random(7);
+
+    private int invocation;
+
+    @Setup(Level.Trial)
+    public void createRepository() {
+        if (files < 2 || branches < 1) {
+            // checkoutBranch and merge need branch-0 and a diverged master.
+            throw new IllegalArgumentException("need at least 2 files and 1 branch");
+        }
+        dir = SyntheticRepo.create(files, fileSize, depth, branches);
+        masterTip = readContentsAsString(join(dir, ".gitlet", "refs", "heads", "master"));
+        local = SyntheticRepo.tempDir("gitlet-bench-local");
+        try (Repository repo = repo()) {
+            repo.addRemote("bench", join(local, ".gitlet").getPath());
+        }
+        warm = repo();
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteRepository() {
+        System.setOut(stdout);
+        warm.close();
+        SyntheticRepo.delete(dir);
+        SyntheticRepo.delete(local);
+    }
+
+    private Repository repo() {
+        return new Repository(dir.getPath());
+    }
+
+    @Benchmark
+    public void status() {
+        try (Repository repo = repo()) {
+            repo.status();
+        }
+    }
+
+    @Benchmark
+    public void log() {
+        try (Repository repo = repo()) {
+            repo.log();
+        }
+    }
+
+    @Benchmark
+    public void globalLog() {
+        try (Repository repo = repo()) {
+            repo.globalLog();
+        }
+    }
+
+    @Benchmark
+    public void logWarm() {
+        warm.log();
+    }
+
+    @Benchmark
+    public void globalLogWarm() {
+        warm.globalLog();
+    }
+
+    @Benchmark
+    public void find() {
+        try (Repository repo = repo()) {
+            repo.find("change 1");
+        }
+    }
+
+    /**
+     * Switch between master and the first branch.
+     */
+    @Benchmark
+    public void checkoutBranch() {
+        invocation += 1;
+        try (Repository repo = repo()) {
+            repo.checkoutBranch(invocation % 2 == 0 ? "master" : "branch-0");
+        }
+    }
+
+    /**
+     * A working file given new contents before each invocation.
+     */
+    @State(Scope.Thread)
+    public static class Changed {
+        int file;
+
+        @Setup(Level.Invocation)
+        public void change(RepositoryBench bench) {
+            file = bench.random.nextInt(bench.files);
+            SyntheticRepo.rewrite(bench.dir, file, bench.fileSize, bench.random);
+        }
+    }
+
+    @Benchmark
+    public void add(Changed changed) {
+        try (Repository repo = repo()) {
+            repo.add(SyntheticRepo.fileName(changed.file));
+        }
+    }
+
+    @Benchmark
+    public void addAndCommit(Changed changed) {
+        try (Repository repo = repo()) {
+            repo.add(SyntheticRepo.fileName(changed.file));
+            repo.commit("benchmark commit " + invocation++);
+        }
+    }
+
+    /**
+     * Master put back where it was generated before each invocation,
+     * undoing the previous merge.
+     */
+    @State(Scope.Thread)
+    public static class AtTip {
+        @Setup(Level.Invocation)
+        public void reset(RepositoryBench bench) {
+            try (Repository repo = bench.repo()) {
+                repo.reset(bench.masterTip);
+            }
+        }
+    }
+
+    @Benchmark
+    public void merge(AtTip atTip) {
+        try (Repository repo = repo()) {
+            repo.merge("branch-0");
+        }
+    }
+
+    /**
+     * An empty repository before each invocation, with the synthetic one
+     * as remote "origin" (which has it as remote "bench").
+     */
+    @State(Scope.Thread)
+    public static class EmptyLocal {
+        @Setup(Level.Invocation)
+        public void recreate(RepositoryBench bench) {
+            SyntheticRepo.delete(bench.local);
+            bench.local.mkdirs();
+            try (Repository repo = new Repository(bench.local.getPath())) {
+                repo.init();
+                repo.addRemote("origin", join(bench.dir, ".gitlet").getPath());
+            }
+        }
+    }
+
+    @Benchmark
+    public void fetch(EmptyLocal emptyLocal) {
+        try (Repository repo = new Repository(local.getPath())) {
+            repo.fetch("origin", "master");
+        }
+    }
+
+    @Benchmark
+    public void push(EmptyLocal emptyLocal) {
+        try (Repository repo = repo()) {
+            repo.push("bench", "master");
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static gitlet.Utils.*;
+
+/**
+ * <pre>
+ * Generator of synthetic repositories for the benchmarks.
+ *
+ * The repository gets FILES files of FILESIZE random bytes in its first
+ * commit, then DEPTH commits on master, each changing a few files, then
+ * BRANCHES branches off the tip of master ("branch-0", ...), each with
+ * one commit changing a file of its own, and a last commit on master
+ * changing the last file. Contents are drawn from a seeded Random, so
+ * the same parameters always give the same repository.
+ * <pre>
+ */
+class SyntheticRepo {
+
+    /** Files changed by each commit of the history. */
+    static final int FILES_PER_COMMIT = 3;
+
+    private final File dir;
+    private final int files;
+    private final int fileSize;
+    private final Random random;
+
+    private SyntheticRepo(File dir, int files, int fileSize, long seed) {
+        this.dir = dir;
+        this.files = files;
+        this.fileSize = fileSize;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Create a repository in a new temporary directory.
+     * @return its working directory
+     */
+    static File create(int files, int fileSize, int depth, int branches) {
+        File dir = tempDir("gitlet-bench");
+        SyntheticRepo repo = new SyntheticRepo(dir, files, fileSize, 42);
+        quietly(() -> repo.populate(depth, branches));
+        return dir;
+    }
+
+    /**
+     * @return a new empty directory, deleted when the JVM exits.
+     */
+    static File tempDir(String prefix) {
+        try {
+            File dir = Files.createTempDirectory(prefix).toFile();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> delete(dir)));
+            return dir;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Delete DIR and everything below it.
+     */
+    static void delete(File dir) {
+        if (!dir.exists()) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Run ACTION with System.out discarded, commands print as they go.
+     */
+    static void quietly(Runnable action) {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            action.run();
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * @return the name of the I-th file of the repository.
+     */
+    static String fileName(int i) {
+        return String.format("f%06d.txt", i);
+    }
+
+    /**
+     * Give file I of the working directory DIR new random contents.
+     */
+    static void rewrite(File dir, int i, int size, Random random) {
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        writeContents(join(dir, fileName(i)), (Object) content);
+    }
+
+    private void populate(int depth, int branches) {
+        run(repo -> repo.init());
+        List<String> names = new ArrayList<>(files);
+        for (int i = 0; i < files; i += 1) {
+            rewrite(dir, i, fileSize, random);
+            names.add(fileName(i));
+        }
+        run(repo -> {
+            repo.add(names);
+            repo.commit("initial files");
+        });
+        for (int c = 0; c < depth; c += 1) {
+            commitChanges("change " + c);
+        }
+        for (int b = 0; b < branches; b += 1) {
+            String branch = "branch-" + b;
+            run(repo -> repo.branch(branch));
+        }
+        for (int b = 0; b < branches; b += 1) {
+            String branch = "branch-" + b;
+            String name = fileName(b % files);
+            run(repo -> repo.checkoutBranch(branch));
+            rewrite(dir, b % files, fileSize, random);
+            String message = "branch " + b;
+            run(repo -> {
+                repo.add(name);
+                repo.commit(message);
+            });
+        }
+        if (branches > 0) {
+            run(repo -> repo.checkoutBranch("master"));
+            // so that merging a branch is not a fast-forward.
+            rewrite(dir, files - 1, fileSize, random);
+            run(repo -> {
+                repo.add(fileName(files - 1));
+                repo.commit("master after branches");
+            });
+        }
+    }
+
+    private void commitChanges(String message) {
+        List<String> names = new ArrayList<>(FILES_PER_COMMIT);
+        for (int k = 0; k < Math.min(FILES_PER_COMMIT, files); k += 1) {
+            int i = random.nextInt(files);
+            rewrite(dir, i, fileSize, random);
+            names.add(fileName(i));
+        }
+        run(repo -> {
+            repo.add(names);
+            repo.commit(message);
+        });
+    }
+
+    /**
+     * Run COMMAND on a new Repository of DIR, as a run of gitlet.Main
+     * would, closing it afterwards so the next one finds the stage
+     * unlocked.
+     */
+    private void run(Consumer<Repository> command) {
+        try (Repository repo = new Repository(dir.getPath())) {
+            command.accept(repo);
+        }
+    }
+}
@@ -7,10 +7,20 @@ import java.nio.charset.StandardCharsets;
 import static gitlet.Utils.*;
 
 /**
+ * <pre>
  * Blob
+ *
+ * A file of the working directory. Its id is the hash of its content
+ * alone, see ObjectStore. Blobs are no longer serialized, the class
+ * stays Serializable so that objects written by older versions can
+ * still be decoded.
+ * <pre>
  */
 public class Blob implements Serializable {
 
+    /** Serial version of the legacy serialized Blob objects. */
+    private static final long serialVersionUID = 4776957494342663196L;
+
     /**
      * The reference to the Blob.
      */
@@ -79,7 +89,8 @@ public class Blob implements Serializable {
     private String generateId() {
         File file = join(cwd, fileName);
         if (file.exists()) {
-            return sha1(fileName, this.getContent());
+            // streamed, the content is not loaded just to hash it.
+            return sha1(file);
         } else {
             return sha1(fileName);
         }
@@ -0,0 +1,148 @@
+package gitlet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * <pre>
+ * Thin client of the gitlet daemon (see Daemon): forwards its arguments
+ * and working directory over the daemon's Unix domain socket and prints
+ * what the command prints, so a command costs no more than starting this
+ * small class. Runs the command itself when no daemon is listening.
+ *
+ * Usage: java gitlet.Client ARGS, as java gitlet.Main ARGS.
+ *
+ * Request:  working directory | arg count | args
+ * Response: (length | stdout bytes)* | 0 | exit status | stderr text
+ *
+ * where counts, lengths and statuses are ints, and every string is its
+ * length in bytes followed by its UTF-8 bytes, of any length.
+ * <pre>
+ */
+public class Client {
+
+    /** Environment variable naming the socket, if not the default one. */
+    static final String SOCKET_ENV = "GITLET_SOCKET";
+
+    /** Size of the buffer copying the output of a command. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    public static void main(String[] args) {
+        SocketChannel channel = connect(socketPath());
+        if (channel == null) {
+            Main.main(args);
+            return;
+        }
+        int status;
+        try (channel) {
+            status = forward(channel, System.getProperty("user.dir"), args);
+        } catch (IOException excp) {
+            System.err.println("Lost the gitlet daemon: " + excp.getMessage());
+            status = 1;
+        }
+        System.out.flush();
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * @return the socket of the daemon: $GITLET_SOCKET, or gitlet-USER.sock
+     *         in the temporary directory.
+     */
+    static Path socketPath() {
+        String path = System.getenv(SOCKET_ENV);
+        if (path != null && !path.isEmpty()) {
+            return Path.of(path);
+        }
+        return Path.of(System.getProperty("java.io.tmpdir"),
+            "gitlet-" + System.getProperty("user.name") + ".sock");
+    }
+
+    /**
+     * @return a channel connected to the daemon listening on SOCKET, or
+     *         null if there is none.
+     */
+    static SocketChannel connect(Path socket) {
+        if (!Files.exists(socket)) {
+            return null;
+        }
+        try {
+            SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            try {
+                channel.connect(UnixDomainSocketAddress.of(socket));
+                return channel;
+            } catch (IOException excp) {
+                channel.close();
+                return null;
+            }
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /**
+     * Run ARGS in the working directory CWD by the daemon at the other
+     * end of CHANNEL, copying its output to System.out and System.err.
+     * @return the exit status of the command.
+     */
+    static int forward(SocketChannel channel, String cwd, String[] args) throws IOException {
+        DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+        writeString(out, cwd);
+        out.writeInt(args.length);
+        for (String arg : args) {
+            writeString(out, arg);
+        }
+        out.flush();
+
+        DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+        OutputStream stdout = System.out;
+        byte[] buf = new byte[BUFFER_SIZE];
+        for (int length = in.readInt(); length > 0; length = in.readInt()) {
+            while (length > 0) {
+                int n = in.read(buf, 0, Math.min(length, buf.length));
+                if (n < 0) {
+                    throw new IOException("connection closed");
+                }
+                stdout.write(buf, 0, n);
+                length -= n;
+            }
+        }
+        int status = in.readInt();
+        System.err.print(readString(in));
+        return status;
+    }
+
+    /**
+     * Send S to OUT as its length in bytes and its UTF-8 bytes.
+     */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @return the string sent by writeString read from IN.
+     */
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("bad string length " + length);
+        }
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length < length) {
+            throw new IOException("connection closed");
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,15 +1,18 @@
 package gitlet;
 
-import static gitlet.Utils.sha1;
+import static gitlet.Utils.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.Date; // Represents Time.
 import java.util.HashMap;
-// import java.util.TreeMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -23,10 +26,30 @@ import java.util.Map;
  *  of file names to blob references, a parent reference,
  *  and (for merges) a second parent reference.
  *
+ *  The files of a commit are a snapshot: the id of its root tree (see
+ *  Tree), so that commits share every directory in which nothing changed.
+ *
+ *  Commits are stored in a binary encoding, see encode(); the ones
+ *  written by older versions (with a flat file map, or as serialized
+ *  objects) are still readable.
+ *
  *  @author krmmzs
  */
 public class Commit implements Serializable {
 
+    /** Serial version of the serialized commits of older versions. */
+    private static final long serialVersionUID = -4539289032515928403L;
+
+    private static final byte[] MAGIC = {'G', 'L', 'C'};
+    private static final int VERSION = 2;
+
+    /** Version of the encoding holding the flat file map. */
+    private static final int FLAT_VERSION = 1;
+
+    /** The date as log prints it, shared as it is immutable. */
+    private static final DateTimeFormatter DATE_FORMAT =
+        DateTimeFormatter.ofPattern("EEE MMM d HH:mm:ss yyyy Z", Locale.ENGLISH);
+
     /**
      * The message of this Commit.
      */
@@ -53,13 +76,33 @@ public class Commit implements Serializable {
     private transient List<Commit> parentsExt;
 
     /**
-     * Cache for stage.
+     * The id of the root tree of this Commit, null for the commits
+     * of older versions until one is built for them.
+     */
+    private String tree;
+
+    /**
+     * The trees of the repository this Commit was read from.
+     */
+    private transient TreeStore trees;
+
+    /**
+     * <pre>
+     * The encoded file map of a commit of an older version, decoded
+     * on first use so that reading the history never touches it.
+     * <pre>
+     */
+    private transient ByteBuffer encodedBlobs;
+
+    /**
+     * Whether the commit was read as a serialized object, whose blob ids
+     * may be those of the first versions (see LegacyIds).
      */
-    private Stage stage;
+    private transient boolean serialized;
 
     /**
      * <pre>
-     * The blobs of this Commit.
+     * The blobs of this Commit, its tree flattened on first use.
      *
      * filename, blob's id.
      * <pre>
@@ -72,23 +115,60 @@ public class Commit implements Serializable {
         this.timestamp = new Date(0);
         this.parents = new LinkedList<>();
         this.blobs = new HashMap<>();
+        this.tree = Tree.EMPTY_ID;
         this.id = sha1(message, timestamp.toString()); // init's id(sha1) is special.
     }
 
-    public Commit(String message, List<Commit> parentsExt, Stage stage) {
+    /**
+     * @param message
+     * @param parentsExt
+     * @param tree the root tree of the snapshot, stored in TREES
+     * @param trees
+     */
+    public Commit(String message, List<Commit> parentsExt, String tree, TreeStore trees) {
         this.message = message;
         this.timestamp = new Date();
         this.parentsExt = parentsExt;
-        this.stage = stage;
+        this.tree = tree;
+        this.trees = trees;
     }
 
     public Map<String, String> getBlobs() {
+        if (this.blobs == null && this.encodedBlobs != null) {
+            decodeBlobs();
+        }
         if (this.blobs == null) {
-            generateBlobs();
+            this.blobs = trees.flatten(tree);
         }
         return this.blobs;
     }
 
+    boolean isSerialized() {
+        return serialized;
+    }
+
+    /**
+     * Give a serialized commit the files BLOBS, file name -> content id.
+     */
+    void setBlobs(Map<String, String> blobs) {
+        this.blobs = blobs;
+    }
+
+    /**
+     * @return the id of the root tree, or null for a commit of an
+     *         older version (see setTreeId).
+     */
+    public String getTreeId() {
+        return this.tree;
+    }
+
+    /**
+     * Give a commit of an older version the tree built from its files.
+     */
+    void setTreeId(String tree) {
+        this.tree = tree;
+    }
+
     public String getMessage() {
         return this.message;
     }
@@ -119,8 +199,7 @@ public class Commit implements Serializable {
     }
 
     public String getDateString() {
-        DateFormat df = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", Locale.ENGLISH);
-        return df.format(timestamp);
+        return DATE_FORMAT.format(timestamp.toInstant().atZone(ZoneId.systemDefault()));
     }
 
     public String getFirstParentId() {
@@ -135,42 +214,149 @@ public class Commit implements Serializable {
     }
 
     public String getCommitAsString() {
-        StringBuffer sb = new StringBuffer();
-        sb.append("===\n");
-        sb.append("commit " + this.id + "\n");
-        if (parents.size() == 2) {
-            sb.append("Merge: " + parents.get(0).substring(0, 7)
-                + " " + parents.get(1).substring(0, 7) + "\n");
+        StringBuilder sb = new StringBuilder();
+        try {
+            writeLog(sb, false);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
-        sb.append("Date: " + this.getDateString() + "\n");
-        sb.append(this.message + "\n\n");
         return sb.toString();
     }
 
+    /**
+     * Write the log entry of this commit to OUT: the full entry, or its
+     * abbreviated id and message on one line if ONELINE.
+     */
+    public void writeLog(Appendable out, boolean oneline) throws IOException {
+        if (oneline) {
+            out.append(getId(), 0, 7).append(' ').append(this.message).append('\n');
+            return;
+        }
+        out.append("===\n");
+        out.append("commit ").append(getId()).append('\n');
+        List<String> parents = getParents();
+        if (parents.size() == 2) {
+            out.append("Merge: ").append(parents.get(0), 0, 7)
+                .append(' ').append(parents.get(1), 0, 7).append('\n');
+        }
+        out.append("Date: ").append(this.getDateString()).append('\n');
+        out.append(this.message).append("\n\n");
+    }
+
     /**
      * Lazy load generate id.
      *
-     * @return id by message, Timestamp, pearents, blobs.
+     * @return id by message, Timestamp, pearents, tree.
      */
     private String generateId() {
         if (parents == null) {
             generateParents();
         }
-        if (blobs == null) {
-            generateBlobs();
+        return sha1(message, timestamp.toString(), parents.toString(), tree);
+    }
+
+    /**
+     * <pre>
+     * The binary encoding of this commit, its id being the name it is
+     * stored under:
+     *
+     *     magic "GLC" | version | timestamp (ms)
+     *     parent count | parent ids
+     *     message length | message
+     *     tree id
+     *
+     * where counts, lengths and the timestamp are varints, ids are raw
+     * 20-byte SHA-1s and strings are UTF-8. Version 1 had, instead of the
+     * tree id, the sorted file map:
+     *
+     *     file count | (name length | name | blob id)*
+     *
+     * A commit of an older version needs its tree (see setTreeId) first.
+     * <pre>
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            out.write(MAGIC);
+            out.write(VERSION);
+            writeVarint(out, timestamp.getTime());
+            List<String> parentIds = getParents();
+            writeVarint(out, parentIds.size());
+            for (String parent : parentIds) {
+                out.write(uidToBytes(parent));
+            }
+            writeString(out, message);
+            out.write(uidToBytes(tree));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
-        return sha1(message, timestamp.toString(), parents.toString(), blobs.toString());
+        return out.toByteArray();
     }
 
-    private void generateBlobs() {
-        this.blobs = parentsExt.get(0).getBlobs(); // using first parent blobs
-        for (Map.Entry<String, String> entry : stage.getAdded().entrySet()) {
-            String fileName = entry.getKey();
-            String blobId = entry.getValue();
-            blobs.put(fileName, blobId); // if same fileName, different blobId, will update
+    /**
+     * Decode the commit ID stored as BYTES, in the binary encoding or as
+     * a serialized object. Only the header (parents, timestamp, message
+     * and tree) is decoded, the files are read by getBlobs() from TREES.
+     */
+    public static Commit decode(String id, byte[] bytes, TreeStore trees) {
+        if (bytes.length < MAGIC.length || bytes[0] != MAGIC[0]
+            || bytes[1] != MAGIC[1] || bytes[2] != MAGIC[2]) {
+            Commit commit = deserialize(bytes, Commit.class);
+            commit.trees = trees;
+            commit.serialized = true;
+            return commit;
         }
-        for (String fileName : stage.getRemoved()) {
-            blobs.remove(fileName);
+        ByteBuffer buf = ByteBuffer.wrap(bytes, MAGIC.length, bytes.length - MAGIC.length);
+        int version = buf.get();
+        if (version != VERSION && version != FLAT_VERSION) {
+            throw new IllegalArgumentException("unknown commit version " + version);
+        }
+        Commit commit = new Commit(id);
+        commit.trees = trees;
+        commit.timestamp = new Date(readVarint(buf));
+        int parentCount = (int) readVarint(buf);
+        commit.parents = new ArrayList<>(parentCount);
+        for (int i = 0; i < parentCount; i += 1) {
+            commit.parents.add(bytesToUid(bytes, buf.position()));
+            buf.position(buf.position() + RAW_UID_LENGTH);
+        }
+        commit.message = readString(buf);
+        if (version == FLAT_VERSION) {
+            commit.encodedBlobs = buf.slice();
+        } else {
+            commit.tree = bytesToUid(bytes, buf.position());
+        }
+        return commit;
+    }
+
+    private Commit(String id) {
+        this.id = id;
+    }
+
+    private void decodeBlobs() {
+        ByteBuffer buf = encodedBlobs.duplicate();
+        int count = (int) readVarint(buf);
+        this.blobs = new HashMap<>(Math.max(16, count * 4 / 3 + 1));
+        byte[] raw = new byte[RAW_UID_LENGTH];
+        for (int i = 0; i < count; i += 1) {
+            String fileName = readString(buf);
+            buf.get(raw);
+            blobs.put(fileName, bytesToUid(raw, 0));
         }
-    } 
+        this.encodedBlobs = null;
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String str) throws IOException {
+        byte[] raw = str.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, raw.length);
+        out.write(raw);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int length = (int) readVarint(buf);
+        String res = new String(buf.array(), buf.arrayOffset() + buf.position(),
+            length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return res;
+    }
 }
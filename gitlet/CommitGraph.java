@@ -0,0 +1,329 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static gitlet.Utils.*;
+
+/**
+ * <pre>
+ * Compact cache of the commit graph, so ancestry walks never deserialize
+ * a commit just to read its parents.
+ *
+ * Commits are numbered in the order they were recorded; a commit is only
+ * recorded after its parents, so parents always have smaller numbers.
+ * The file is a header followed by one fixed-size record per commit:
+ *
+ *     magic "GLG" | version
+ *     record: id (20 bytes) | parent1 | parent2 | generation | timestamp
+ *
+ * where missing parents are -1 and the generation of a commit is one more
+ * than the largest generation of its parents (1 for the initial commit).
+ *
+ * Commits not recorded yet (older repositories, fetched commits) are
+ * loaded and recorded on first use, by any command, so records are
+ * appended under the lock of the file (see LockFile): the records other
+ * processes appended since the file was read are read first, and the
+ * new ones numbered after them.
+ * <pre>
+ */
+class CommitGraph {
+
+    private static final byte[] MAGIC = {'G', 'L', 'G'};
+    private static final int VERSION = 1;
+    private static final int HEADER = MAGIC.length + 1;
+    private static final int RECORD = RAW_UID_LENGTH + 3 * Integer.BYTES + Long.BYTES;
+
+    /**
+     * The commit-graph file.
+     */
+    private final File file;
+
+    /**
+     * Loads the commits missing from the graph, returns null for unknown ids.
+     */
+    private final Function<String, Commit> loader;
+
+    private int size;
+    private byte[] ids = new byte[0];
+    private int[] parent1 = new int[0];
+    private int[] parent2 = new int[0];
+    private int[] generation = new int[0];
+    private long[] timestamp = new long[0];
+
+    /**
+     * commit id -> its number.
+     */
+    private final Map<String, Integer> index = new HashMap<>();
+
+    private boolean loaded;
+
+    CommitGraph(File file, Function<String, Commit> loader) {
+        this.file = file;
+        this.loader = loader;
+    }
+
+    /**
+     * @return number of commits recorded.
+     */
+    int size() {
+        load();
+        return size;
+    }
+
+    /**
+     * @param commitId complete commit id
+     * @return the number of the commit, recording it (and its missing
+     *         ancestors) first if needed, or -1 if there is no such commit.
+     */
+    int indexOf(String commitId) {
+        load();
+        Integer i = index.get(commitId);
+        if (i != null) {
+            return i;
+        }
+        return record(commitId);
+    }
+
+    String idAt(int i) {
+        return bytesToUid(ids, i * RAW_UID_LENGTH);
+    }
+
+    /**
+     * @return the numbers of the parents of commit I, first parent first.
+     */
+    int[] parentsOf(int i) {
+        if (parent1[i] < 0) {
+            return new int[0];
+        } else if (parent2[i] < 0) {
+            return new int[] {parent1[i]};
+        }
+        return new int[] {parent1[i], parent2[i]};
+    }
+
+    int firstParentOf(int i) {
+        return parent1[i];
+    }
+
+    int generationOf(int i) {
+        return generation[i];
+    }
+
+    long timestampOf(int i) {
+        return timestamp[i];
+    }
+
+    /**
+     * @param from commit numbers to start from
+     * @return the commits reachable from FROM, FROM included.
+     */
+    BitSet reachable(int... from) {
+        BitSet seen = new BitSet(size);
+        int[] queue = new int[size];
+        int head = 0;
+        int tail = 0;
+        for (int i : from) {
+            if (i >= 0 && !seen.get(i)) {
+                seen.set(i);
+                queue[tail++] = i;
+            }
+        }
+        while (head < tail) {
+            int c = queue[head++];
+            for (int p = parent1[c], k = 0; k < 2; p = parent2[c], k += 1) {
+                if (p >= 0 && !seen.get(p)) {
+                    seen.set(p);
+                    queue[tail++] = p;
+                }
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * Record COMMIT, just written, and any of its missing ancestors.
+     */
+    void add(Commit commit) {
+        load();
+        if (index.containsKey(commit.getId())) {
+            return;
+        }
+        for (String parent : commit.getParents()) {
+            if (indexOf(parent) < 0) {
+                return;
+            }
+        }
+        append(List.of(commit));
+    }
+
+    /**
+     * Record COMMITID after its missing ancestors, without recursion so
+     * that deep histories do not overflow the stack.
+     */
+    private int record(String commitId) {
+        Map<String, Commit> pending = new HashMap<>();
+        // the commits to append, parents first.
+        Map<String, Commit> ordered = new LinkedHashMap<>();
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(commitId);
+        while (!stack.isEmpty()) {
+            String id = stack.peek();
+            if (index.containsKey(id) || ordered.containsKey(id)) {
+                stack.pop();
+                continue;
+            }
+            Commit commit = pending.get(id);
+            if (commit == null) {
+                commit = loader.apply(id);
+                if (commit == null) {
+                    return -1;
+                }
+                pending.put(id, commit);
+            }
+            boolean ready = true;
+            for (String parent : commit.getParents()) {
+                if (!index.containsKey(parent) && !ordered.containsKey(parent)) {
+                    stack.push(parent);
+                    ready = false;
+                }
+            }
+            if (ready) {
+                stack.pop();
+                ordered.put(id, commit);
+                pending.remove(id);
+            }
+        }
+        append(ordered.values());
+        return index.get(commitId);
+    }
+
+    /**
+     * Record COMMITS, parents first, each after its parents not among them
+     * are recorded, under the lock of the file.
+     */
+    private void append(Collection<Commit> commits) {
+        LockFile lock = LockFile.acquire(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            readTail(raf);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            if (size == 0) {
+                raf.setLength(0);
+                out.write(MAGIC);
+                out.write(VERSION);
+            } else {
+                // what a process killed while appending left.
+                raf.setLength(HEADER + (long) size * RECORD);
+            }
+            for (Commit commit : commits) {
+                if (index.containsKey(commit.getId())) {
+                    // recorded by another process meanwhile.
+                    continue;
+                }
+                List<String> parents = commit.getParents();
+                int p1 = parents.isEmpty() ? -1 : index.get(parents.get(0));
+                int p2 = parents.size() < 2 ? -1 : index.get(parents.get(1));
+                int gen = 1 + Math.max(p1 < 0 ? 0 : generation[p1], p2 < 0 ? 0 : generation[p2]);
+                long time = commit.getTimestamp().getTime();
+                byte[] raw = uidToBytes(commit.getId());
+                out.write(raw);
+                out.writeInt(p1);
+                out.writeInt(p2);
+                out.writeInt(gen);
+                out.writeLong(time);
+                put(raw, p1, p2, gen, time);
+            }
+            raf.seek(raf.length());
+            raf.write(bytes.toByteArray());
+        } catch (IOException excp) {
+            // numbered records that are not on disk: read the file anew.
+            size = 0;
+            index.clear();
+            loaded = false;
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * Read the records appended to RAF since it was last read.
+     */
+    private void readTail(RandomAccessFile raf) throws IOException {
+        long from = HEADER + (long) size * RECORD;
+        if (raf.length() < from + RECORD) {
+            return;
+        }
+        byte[] tail = new byte[(int) ((raf.length() - from) / RECORD * RECORD)];
+        raf.seek(from);
+        raf.readFully(tail);
+        readRecords(ByteBuffer.wrap(tail));
+    }
+
+    private void readRecords(ByteBuffer buf) {
+        byte[] raw = new byte[RAW_UID_LENGTH];
+        while (buf.remaining() >= RECORD) {
+            buf.get(raw);
+            put(raw.clone(), buf.getInt(), buf.getInt(), buf.getInt(), buf.getLong());
+        }
+    }
+
+    private void put(byte[] raw, int p1, int p2, int gen, long time) {
+        if (size == parent1.length) {
+            int capacity = Math.max(16, size * 2);
+            ids = Arrays.copyOf(ids, capacity * RAW_UID_LENGTH);
+            parent1 = Arrays.copyOf(parent1, capacity);
+            parent2 = Arrays.copyOf(parent2, capacity);
+            generation = Arrays.copyOf(generation, capacity);
+            timestamp = Arrays.copyOf(timestamp, capacity);
+        }
+        System.arraycopy(raw, 0, ids, size * RAW_UID_LENGTH, RAW_UID_LENGTH);
+        parent1[size] = p1;
+        parent2[size] = p2;
+        generation[size] = gen;
+        timestamp[size] = time;
+        index.put(bytesToUid(raw, 0), size);
+        size += 1;
+    }
+
+    /**
+     * Read the whole file once; a trailing partial record, which may be
+     * an append in progress, is ignored.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.isFile()) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(readContents(file));
+        if (buf.remaining() < HEADER) {
+            return;
+        }
+        for (byte b : MAGIC) {
+            if (buf.get() != b) {
+                throw new IllegalArgumentException("bad commit-graph file");
+            }
+        }
+        if (buf.get() != VERSION) {
+            throw new IllegalArgumentException("unknown commit-graph version");
+        }
+        readRecords(buf);
+    }
+}
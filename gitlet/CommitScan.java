@@ -0,0 +1,56 @@
+package gitlet;
+
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * <pre>
+ * Reads many commits on several threads, for the commands looking at
+ * every commit (global-log, find).
+ *
+ * The ids are read in batches, each batch split over the fork-join pool,
+ * and the results of a batch come back in the order of the ids, so the
+ * output is the same as with a serial loop. Batches start small, so the
+ * first results come early, and double up to a bound, so memory does
+ * not grow with the history. Small batches are read on the calling
+ * thread, where forking would cost more than it saves.
+ * <pre>
+ */
+class CommitScan {
+
+    /** Ids in the first batch. */
+    private static final int FIRST_BATCH = 256;
+
+    /** Most ids in a batch, the most results held at once. */
+    private static final int MAX_BATCH = 8192;
+
+    /** Batches smaller than this are read on the calling thread. */
+    private static final int PARALLEL_THRESHOLD = 128;
+
+    private CommitScan() {
+    }
+
+    /**
+     * Apply READER to each of IDS and hand the results that are not null
+     * to SINK, in the order of IDS, until SINK returns false.
+     * @param ids complete commit ids
+     * @param reader reads (and filters) one commit, safe to call on
+     *               several threads at once
+     * @param sink takes the results on the calling thread
+     */
+    static <T> void scan(List<String> ids, Function<String, T> reader, Predicate<T> sink) {
+        int batch = FIRST_BATCH;
+        for (int from = 0; from < ids.size(); from += batch, batch = Math.min(MAX_BATCH, 2 * batch)) {
+            List<String> part = ids.subList(from, Math.min(ids.size(), from + batch));
+            Stream<String> stream = part.size() < PARALLEL_THRESHOLD
+                ? part.stream() : part.parallelStream();
+            for (T result : stream.map(reader).toList()) {
+                if (result != null && !sink.test(result)) {
+                    return;
+                }
+            }
+        }
+    }
+}
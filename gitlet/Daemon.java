@@ -0,0 +1,236 @@
+package gitlet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/**
+ * <pre>
+ * java gitlet.Main daemon
+ *
+ * Serves the commands of gitlet.Client over a Unix domain socket (see
+ * Client.socketPath), so a command pays neither the start of a JVM nor
+ * cold caches: the daemon stays warm, and keeps the object cache (see
+ * ObjectCache) and the open packs (see PackDirectory) of the last
+ * MAX_REPOSITORIES repositories it served from one command to the next.
+ * Everything else (head, stage, indexes) is read again by each command,
+ * as files other processes may have changed.
+ *
+ * Commands run one at a time, whichever client sent them, each with
+ * System.out going to its client. The socket is only accessible to its
+ * owner: it is bound in a directory only its owner can enter, restricted,
+ * then moved to its path. It is removed when the daemon stops.
+ * <pre>
+ */
+class Daemon {
+
+    /** Size of the chunks the output of a command is sent in. */
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    /** Number of repositories whose caches are kept. */
+    private static final int MAX_REPOSITORIES = 16;
+
+    /** Working directory -> what is kept of its repository, least
+     *  recently used first. */
+    private final Map<String, Served> served =
+        new LinkedHashMap<>(MAX_REPOSITORIES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Served> eldest) {
+                if (size() <= MAX_REPOSITORIES) {
+                    return false;
+                }
+                eldest.getValue().packs.close();
+                return true;
+            }
+        };
+
+    /**
+     * What is kept of a repository from one command to the next.
+     */
+    private static class Served {
+        final ObjectCache cache = new ObjectCache(ObjectCache.DEFAULT_CAPACITY);
+        final PackDirectory packs;
+
+        Served(String cwd) {
+            packs = Repository.packsOf(cwd);
+        }
+    }
+
+    private Daemon() {
+    }
+
+    /**
+     * Listen on SOCKET and run the commands received, until killed.
+     */
+    static void serve(Path socket) {
+        SocketChannel running = Client.connect(socket);
+        if (running != null) {
+            try {
+                running.close();
+            } catch (IOException excp) {
+                // already answered, nothing to release.
+            }
+            exit("A Gitlet daemon is already running.");
+        }
+        Daemon daemon = new Daemon();
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            bind(server, socket);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socket);
+                } catch (IOException excp) {
+                    // nothing left to report to.
+                }
+            }));
+            while (true) {
+                SocketChannel client = server.accept();
+                Thread thread = new Thread(() -> daemon.handle(client), "gitlet-client");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Bind SERVER to SOCKET, which only its owner may connect to from the
+     * moment it exists: the socket is bound in a new directory of mode
+     * 0700 next to SOCKET, restricted, then moved to SOCKET.
+     */
+    private static void bind(ServerSocketChannel server, Path socket) throws IOException {
+        Path parent = socket.toAbsolutePath().getParent();
+        Path dir = Files.createTempDirectory(parent, ".gitlet-",
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        Path bound = dir.resolve("sock");
+        try {
+            server.bind(UnixDomainSocketAddress.of(bound));
+            Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+            // replaces one left by a daemon which did not stop cleanly.
+            Files.move(bound, socket, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(bound);
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * Read a command from CLIENT, run it and send back its output.
+     */
+    private void handle(SocketChannel client) {
+        try (client) {
+            DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+            String cwd = Client.readString(in);
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i += 1) {
+                args[i] = Client.readString(in);
+            }
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(client));
+            run(cwd, args, out);
+            out.flush();
+        } catch (IOException excp) {
+            // the client went away, nothing to answer.
+        }
+    }
+
+    /**
+     * Run ARGS in the working directory CWD, sending its output to OUT.
+     */
+    private synchronized void run(String cwd, String[] args, DataOutputStream out)
+        throws IOException {
+        ChunkedOutputStream chunks = new ChunkedOutputStream(out);
+        PrintStream stdout = System.out;
+        int status = 0;
+        String stderr = "";
+        System.setOut(new PrintStream(chunks, false, StandardCharsets.UTF_8));
+        try {
+            Served repo = served.computeIfAbsent(cwd, Served::new);
+            try (Repository repository = new Repository(cwd, repo.cache, repo.packs)) {
+                Main.run(args, repository);
+            }
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        } catch (RuntimeException excp) {
+            StringWriter trace = new StringWriter();
+            excp.printStackTrace(new PrintWriter(trace));
+            stderr = trace.toString();
+            status = 1;
+        } finally {
+            System.out.flush();
+            System.setOut(stdout);
+        }
+        chunks.finish();
+        out.writeInt(status);
+        Client.writeString(out, stderr);
+    }
+
+    /**
+     * Sends what is written to it as length-prefixed chunks, ended by an
+     * empty one.
+     */
+    private static class ChunkedOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte[] buf = new byte[CHUNK_SIZE];
+        private int count;
+
+        ChunkedOutputStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buf.length) {
+                flush();
+            }
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buf.length) {
+                    flush();
+                }
+                int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                out.writeInt(count);
+                out.write(buf, 0, count);
+                count = 0;
+            }
+            out.flush();
+        }
+
+        void finish() throws IOException {
+            flush();
+            out.writeInt(0);
+        }
+    }
+}
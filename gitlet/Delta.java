@@ -0,0 +1,161 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static gitlet.Utils.readVarint;
+import static gitlet.Utils.writeVarint;
+
+/**
+ * <pre>
+ * Copy/insert delta encoding of one version of a file against another,
+ * used to store similar blob versions compactly in a pack.
+ *
+ * A delta is the base length and the target length followed by a list
+ * of instructions:
+ *
+ *     1xxxxxxx offset length   copy LENGTH bytes of the base at OFFSET
+ *     0xxxxxxx bytes...        insert the next xxxxxxx (1..127) bytes
+ * <pre>
+ */
+class Delta {
+
+    /** Length of the blocks of the base indexed for matching. */
+    private static final int BLOCK = 16;
+
+    /** Largest insert instruction. */
+    private static final int MAX_INSERT = 0x7F;
+
+    /** Instruction byte of a copy. */
+    private static final int COPY = 0x80;
+
+    private Delta() {
+    }
+
+    /**
+     * @param base the older version
+     * @param target the version to encode
+     * @return the instructions rebuilding TARGET from BASE
+     */
+    static byte[] create(byte[] base, byte[] target) {
+        int[] table = indexBlocks(base);
+        int mask = table.length - 1;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(target.length / 4 + 16);
+        try {
+            writeVarint(out, base.length);
+            writeVarint(out, target.length);
+            int insertStart = 0;
+            int i = 0;
+            while (i + BLOCK <= target.length) {
+                int candidate = table[hash(target, i) & mask] - 1;
+                if (candidate < 0 || !sameBlock(base, candidate, target, i)) {
+                    i += 1;
+                    continue;
+                }
+                // extend the match backwards over pending inserts, then forwards.
+                int start = candidate;
+                int from = i;
+                while (start > 0 && from > insertStart && base[start - 1] == target[from - 1]) {
+                    start -= 1;
+                    from -= 1;
+                }
+                int end = i + BLOCK;
+                int baseEnd = candidate + BLOCK;
+                while (end < target.length && baseEnd < base.length && base[baseEnd] == target[end]) {
+                    end += 1;
+                    baseEnd += 1;
+                }
+                writeInsert(out, target, insertStart, from);
+                out.write(COPY);
+                writeVarint(out, start);
+                writeVarint(out, end - from);
+                i = end;
+                insertStart = end;
+            }
+            writeInsert(out, target, insertStart, target.length);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param base the version DELTA was computed against
+     * @param delta output of create
+     * @return the target version
+     */
+    static byte[] apply(byte[] base, byte[] delta) {
+        ByteArrayInputStream in = new ByteArrayInputStream(delta);
+        try {
+            if (readVarint(in) != base.length) {
+                throw new IllegalArgumentException("delta base length mismatch");
+            }
+            byte[] target = new byte[(int) readVarint(in)];
+            int pos = 0;
+            int cmd;
+            while ((cmd = in.read()) >= 0) {
+                if (cmd == COPY) {
+                    int offset = (int) readVarint(in);
+                    int length = (int) readVarint(in);
+                    System.arraycopy(base, offset, target, pos, length);
+                    pos += length;
+                } else {
+                    pos += in.read(target, pos, cmd);
+                }
+            }
+            if (pos != target.length) {
+                throw new IllegalArgumentException("truncated delta");
+            }
+            return target;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Hash table from block hash to (1 + offset) of a block of BASE
+     * starting at a multiple of BLOCK; 0 marks an empty slot.
+     */
+    private static int[] indexBlocks(byte[] base) {
+        int blocks = base.length / BLOCK;
+        int size = Integer.highestOneBit(Math.max(blocks, 1) * 2 - 1) << 1;
+        int[] table = new int[size];
+        for (int off = 0; off + BLOCK <= base.length; off += BLOCK) {
+            int slot = hash(base, off) & (size - 1);
+            if (table[slot] == 0) {
+                table[slot] = off + 1;
+            }
+        }
+        return table;
+    }
+
+    private static int hash(byte[] data, int off) {
+        int h = 0;
+        for (int i = off; i < off + BLOCK; i += 1) {
+            h = h * 31 + data[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean sameBlock(byte[] base, int baseOff, byte[] target, int targetOff) {
+        if (baseOff + BLOCK > base.length) {
+            return false;
+        }
+        for (int k = 0; k < BLOCK; k += 1) {
+            if (base[baseOff + k] != target[targetOff + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] data, int from, int to) {
+        while (from < to) {
+            int n = Math.min(MAX_INSERT, to - from);
+            out.write(n);
+            out.write(data, from, n);
+            from += n;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * <pre>
+ * Word-aligned run-length encoding of a bitmap (after EWAH), as stored
+ * by PackBitmaps. The bitmap is a sequence of 64-bit words, encoded as
+ *
+ *     word count | groups...
+ *     group: run | literal count | literal words
+ *
+ * where run is the number of clean words (all zeros, or all ones) shifted
+ * left by one, with the bit of the clean words as its low bit, followed
+ * by literal count words stored as they are. Counts are varints, words
+ * are big-endian. A bitmap of the objects reachable from a commit is made
+ * of long runs (the objects of older or newer history) and is small.
+ * <pre>
+ */
+class Ewah {
+
+    private Ewah() {
+    }
+
+    /**
+     * @return BITS, encoded.
+     */
+    static byte[] encode(BitSet bits) {
+        long[] words = bits.toLongArray();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer literal = ByteBuffer.allocate(Long.BYTES);
+        try {
+            writeVarint(out, words.length);
+            int i = 0;
+            while (i < words.length) {
+                long clean = words[i] == -1L ? -1L : 0L;
+                int run = 0;
+                while (i < words.length && words[i] == clean) {
+                    run += 1;
+                    i += 1;
+                }
+                int start = i;
+                while (i < words.length && words[i] != 0L && words[i] != -1L) {
+                    i += 1;
+                }
+                writeVarint(out, ((long) run << 1) | (clean & 1));
+                writeVarint(out, i - start);
+                for (int k = start; k < i; k += 1) {
+                    out.write(literal.putLong(0, words[k]).array());
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a bitmap from BUF, advancing its position past it.
+     */
+    static BitSet decode(ByteBuffer buf) {
+        long[] words = new long[(int) readVarint(buf)];
+        int i = 0;
+        while (i < words.length) {
+            long run = readVarint(buf);
+            long clean = (run & 1) == 0 ? 0L : -1L;
+            for (long k = run >>> 1; k > 0; k -= 1) {
+                words[i++] = clean;
+            }
+            for (long k = readVarint(buf); k > 0; k -= 1) {
+                words[i++] = buf.getLong();
+            }
+        }
+        return BitSet.valueOf(words);
+    }
+}
@@ -0,0 +1,86 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * <pre>
+ * Hashes working files on several threads.
+ *
+ * Each worker reuses its own SHA-1 digest (see Utils.sha1), and results
+ * come back in the order of the files, so callers see the same output as
+ * with a serial loop. Small batches are hashed on the calling thread,
+ * where starting the workers would cost more than it saves.
+ * <pre>
+ */
+class HashPool {
+
+    /** Total bytes below which hashing stays on the calling thread. */
+    private static final long PARALLEL_THRESHOLD = 1 << 20;
+
+    /** Most files read at once, to not thrash the disk. */
+    private static final int MAX_THREADS = 32;
+
+    private HashPool() {
+    }
+
+    /**
+     * @param files the files to hash
+     * @param hasher computes the id of one file
+     * @return the ids of FILES, in the same order.
+     */
+    static List<String> hashAll(List<File> files, Function<File, String> hasher) {
+        int threads = Math.min(Math.min(MAX_THREADS,
+            Runtime.getRuntime().availableProcessors()), files.size());
+        if (threads < 2 || totalLength(files) < PARALLEL_THRESHOLD) {
+            List<String> res = new ArrayList<>(files.size());
+            for (File file : files) {
+                res.add(hasher.apply(file));
+            }
+            return res;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "gitlet-hash");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<String>> futures = new ArrayList<>(files.size());
+            for (File file : files) {
+                futures.add(pool.submit(() -> hasher.apply(file)));
+            }
+            List<String> res = new ArrayList<>(files.size());
+            for (Future<String> future : futures) {
+                res.add(future.get());
+            }
+            return res;
+        } catch (ExecutionException excp) {
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
+            }
+            throw new IllegalArgumentException(excp.getCause());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException(excp);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static long totalLength(List<File> files) {
+        long res = 0;
+        for (File file : files) {
+            res += file.length();
+            if (res >= PARALLEL_THRESHOLD) {
+                break;
+            }
+        }
+        return res;
+    }
+}
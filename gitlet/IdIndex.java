@@ -0,0 +1,176 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * <pre>
+ * Persistent sorted index of object ids, used to resolve abbreviated ids
+ * by binary search instead of listing the objects.
+ *
+ * FILE holds the raw 20-byte ids in sorted order. Ids added since it was
+ * last written are appended, unsorted, to FILE.new, by commands holding
+ * the stage lock, after cutting off any partial id a crash left; once
+ * that journal holds JOURNAL_LIMIT ids it is merged into FILE.
+ * <pre>
+ */
+class IdIndex {
+
+    /** Largest number of ids kept in the unsorted journal. */
+    private static final int JOURNAL_LIMIT = 1024;
+
+    /**
+     * The sorted ids.
+     */
+    private final File sorted;
+
+    /**
+     * The ids added since the last merge.
+     */
+    private final File journal;
+
+    IdIndex(File file) {
+        this.sorted = file;
+        this.journal = join(file.getParentFile(), file.getName() + ".new");
+    }
+
+    /**
+     * @return whether the index was ever written.
+     */
+    boolean exists() {
+        return sorted.isFile();
+    }
+
+    /**
+     * Record ID, merging the journal into the sorted ids when it is full.
+     */
+    void add(String id) {
+        if (!exists()) {
+            rebuild(List.of());
+        }
+        try (FileChannel channel = FileChannel.open(journal.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long end = channel.size() / RAW_UID_LENGTH * RAW_UID_LENGTH;
+            // what a process killed while appending left.
+            channel.truncate(end);
+            channel.write(ByteBuffer.wrap(uidToBytes(id)), end);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (journal.length() >= (long) JOURNAL_LIMIT * RAW_UID_LENGTH) {
+            TreeSet<String> ids = readJournal();
+            ids.addAll(readAll());
+            rebuild(ids);
+        }
+    }
+
+    /**
+     * Replace the whole index with IDS.
+     */
+    void rebuild(Collection<String> ids) {
+        File tmp = join(sorted.getParentFile(), sorted.getName() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            for (String id : new TreeSet<>(ids)) {
+                out.write(uidToBytes(id));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try {
+            Files.move(tmp.toPath(), sorted.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        journal.delete();
+    }
+
+    /**
+     * @param prefix abbreviated id
+     * @return the sorted ids starting with PREFIX.
+     */
+    TreeSet<String> withPrefix(String prefix) {
+        TreeSet<String> res = new TreeSet<>();
+        for (String id : readJournal()) {
+            if (id.startsWith(prefix)) {
+                res.add(id);
+            }
+        }
+        if (!exists() || prefix.length() > UID_LENGTH) {
+            return res;
+        }
+        byte[] low = uidToBytes(prefix + "0".repeat(UID_LENGTH - prefix.length()));
+        try (FileChannel channel = FileChannel.open(sorted.toPath(), StandardOpenOption.READ)) {
+            long count = channel.size() / RAW_UID_LENGTH;
+            long lo = 0;
+            long hi = count;
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                if (compare(readAt(channel, mid), low) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            for (long i = lo; i < count; i += 1) {
+                String id = bytesToUid(readAt(channel, i), 0);
+                if (!id.startsWith(prefix)) {
+                    break;
+                }
+                res.add(id);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return res;
+    }
+
+    private List<String> readAll() {
+        return exists() ? decode(readContents(sorted)) : new ArrayList<>();
+    }
+
+    private TreeSet<String> readJournal() {
+        TreeSet<String> res = new TreeSet<>();
+        if (journal.isFile()) {
+            res.addAll(decode(readContents(journal)));
+        }
+        return res;
+    }
+
+    private static List<String> decode(byte[] raw) {
+        List<String> res = new ArrayList<>(raw.length / RAW_UID_LENGTH);
+        for (int off = 0; off + RAW_UID_LENGTH <= raw.length; off += RAW_UID_LENGTH) {
+            res.add(bytesToUid(raw, off));
+        }
+        return res;
+    }
+
+    private static byte[] readAt(FileChannel channel, long i) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(RAW_UID_LENGTH);
+        channel.read(buf, i * RAW_UID_LENGTH);
+        return buf.array();
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for (int k = 0; k < RAW_UID_LENGTH; k += 1) {
+            int cmp = Integer.compare(a[k] & 0xFF, b[k] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,117 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/**
+ * <pre>
+ * The blob ids of the first versions, which hashed the file name with
+ * the content, and the content ids they stand for now.
+ *
+ * Serialized commits and stages (the first format) name their blobs by
+ * either kind of id. Each id is checked once, by hashing the content of
+ * its blob, which is then also stored under its content id; the answer
+ * is appended to FILE, one line each:
+ *
+ *     id | " " | content id
+ *
+ * so that later commands look it up instead. Ids are checked under the
+ * lock of FILE (see LockFile), which is read again once locked, so that
+ * processes reading the same commits do not check, and store, a blob at
+ * once. A repository created by this version never has the file.
+ * <pre>
+ */
+class LegacyIds {
+
+    private final File file;
+
+    /** Id -> content id, read on first use, null until then. */
+    private Map<String, String> ids;
+
+    /** Length of FILE when IDS were read. */
+    private long length;
+
+    LegacyIds(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param id blob id named by a serialized commit or stage
+     * @param store the store holding blob ID
+     * @return the content id of blob ID, stored in STORE.
+     */
+    synchronized String resolve(String id, ObjectStore store) {
+        String res = ids().get(id);
+        if (res != null) {
+            return res;
+        }
+        LockFile lock = LockFile.acquire(file);
+        try {
+            if (file.length() != length) {
+                // checked by another process meanwhile?
+                ids = null;
+                res = ids().get(id);
+                if (res != null) {
+                    return res;
+                }
+            }
+            byte[] content = store.read(id);
+            res = sha1((Object) content);
+            if (!res.equals(id)) {
+                store.write(res, new ByteArrayInputStream(content), content.length);
+            }
+            ids.put(id, res);
+            String line = id + " " + res + "\n";
+            Files.write(file.toPath(), line.getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            length = file.length();
+            return res;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * @return the content id found for blob ID, or null if it was never
+     *         checked.
+     */
+    synchronized String lookup(String id) {
+        return ids().get(id);
+    }
+
+    /**
+     * @return BLOBS, file name -> blob id, with content ids, the blobs
+     *         held in STORE.
+     */
+    Map<String, String> resolveAll(Map<String, String> blobs, ObjectStore store) {
+        Map<String, String> res = new HashMap<>(blobs);
+        res.replaceAll((fileName, id) -> resolve(id, store));
+        return res;
+    }
+
+    private Map<String, String> ids() {
+        if (ids == null) {
+            ids = new HashMap<>();
+            length = file.length();
+            if (file.isFile()) {
+                for (String line : readContentsAsString(file).split("\n")) {
+                    String[] fields = line.split(" ");
+                    if (fields.length == 2 && fields[1].length() == UID_LENGTH) {
+                        ids.put(fields[0], fields[1]);
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+}
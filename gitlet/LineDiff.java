@@ -0,0 +1,367 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <pre>
+ * Line diff of two texts, by Myers' O(ND) algorithm in linear space:
+ * each step finds the middle of a shortest edit script by running the
+ * search from both ends at once, then solves the two halves, so memory
+ * stays proportional to the number of lines.
+ *
+ * Lines are compared as numbers (equal lines getting the same number),
+ * and the lines of one text appearing nowhere in the other are set aside
+ * as changed before the search: they can be in no common subsequence,
+ * and a file rewritten from scratch then costs linear time, not N * D.
+ * Past MIN_COST steps (or the square root of the lines, if more), the
+ * search for a middle gives up for the furthest point reached, as xdiff
+ * does: the script may then not be the shortest, but time stays bounded.
+ * <pre>
+ */
+class LineDiff {
+
+    /**
+     * A change: lines [aStart, aEnd) of the first text replaced by lines
+     * [bStart, bEnd) of the second. Either range may be empty.
+     */
+    static class Edit {
+        final int aStart;
+        final int aEnd;
+        final int bStart;
+        final int bEnd;
+
+        Edit(int aStart, int aEnd, int bStart, int bEnd) {
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+        }
+    }
+
+    /** Lines of context around the changes of a unified diff. */
+    static final int CONTEXT = 3;
+
+    /** Fewest steps the search for a middle takes before giving up. */
+    private static final int MIN_COST = 256;
+
+    private final int[] a;
+    private final int[] b;
+    private final boolean[] changedA;
+    private final boolean[] changedB;
+
+    private LineDiff(int[] a, int[] b, boolean[] changedA, boolean[] changedB) {
+        this.a = a;
+        this.b = b;
+        this.changedA = changedA;
+        this.changedB = changedB;
+    }
+
+    /**
+     * @return the lines of TEXT, each with its "\n", but the last one
+     *         which may have none.
+     */
+    static List<String> lines(String text) {
+        List<String> res = new ArrayList<>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            end = end < 0 ? text.length() : end + 1;
+            res.add(text.substring(start, end));
+            start = end;
+        }
+        return res;
+    }
+
+    /**
+     * @return the changes turning the lines A into the lines B, in order.
+     */
+    static List<Edit> diff(List<String> a, List<String> b) {
+        Map<String, Integer> numbers = new HashMap<>();
+        int[] na = number(a, numbers);
+        int[] nb = number(b, numbers);
+        boolean[] inA = new boolean[numbers.size()];
+        boolean[] inB = new boolean[numbers.size()];
+        for (int n : na) {
+            inA[n] = true;
+        }
+        for (int n : nb) {
+            inB[n] = true;
+        }
+        boolean[] changedA = new boolean[na.length];
+        boolean[] changedB = new boolean[nb.length];
+        int[] keptA = keep(na, inB, changedA);
+        int[] keptB = keep(nb, inA, changedB);
+
+        boolean[] keptChangedA = new boolean[keptA.length];
+        boolean[] keptChangedB = new boolean[keptB.length];
+        new LineDiff(keptA, keptB, keptChangedA, keptChangedB)
+            .compare(0, keptA.length, 0, keptB.length);
+        spread(keptChangedA, changedA);
+        spread(keptChangedB, changedB);
+        return edits(changedA, changedB);
+    }
+
+    private static int[] number(List<String> lines, Map<String, Integer> numbers) {
+        int[] res = new int[lines.size()];
+        for (int i = 0; i < res.length; i += 1) {
+            Integer n = numbers.get(lines.get(i));
+            if (n == null) {
+                n = numbers.size();
+                numbers.put(lines.get(i), n);
+            }
+            res[i] = n;
+        }
+        return res;
+    }
+
+    /**
+     * Mark as CHANGED the lines of LINES not in OTHER.
+     * @return the other lines.
+     */
+    private static int[] keep(int[] lines, boolean[] other, boolean[] changed) {
+        int[] res = new int[lines.length];
+        int n = 0;
+        for (int i = 0; i < lines.length; i += 1) {
+            if (other[lines[i]]) {
+                res[n++] = lines[i];
+            } else {
+                changed[i] = true;
+            }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    /**
+     * Copy the flags of the kept lines, in order, to the lines of CHANGED
+     * which were kept (those not marked yet).
+     */
+    private static void spread(boolean[] kept, boolean[] changed) {
+        int k = 0;
+        for (int i = 0; i < changed.length; i += 1) {
+            if (!changed[i]) {
+                changed[i] = kept[k++];
+            }
+        }
+    }
+
+    private static List<Edit> edits(boolean[] changedA, boolean[] changedB) {
+        List<Edit> res = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < changedA.length || j < changedB.length) {
+            if (i < changedA.length && j < changedB.length && !changedA[i] && !changedB[j]) {
+                i += 1;
+                j += 1;
+                continue;
+            }
+            int aStart = i;
+            int bStart = j;
+            while (i < changedA.length && changedA[i]) {
+                i += 1;
+            }
+            while (j < changedB.length && changedB[j]) {
+                j += 1;
+            }
+            res.add(new Edit(aStart, i, bStart, j));
+        }
+        return res;
+    }
+
+    /**
+     * Mark the changed lines of a[aLo, aHi) and b[bLo, bHi).
+     */
+    private void compare(int aLo, int aHi, int bLo, int bHi) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo += 1;
+            bLo += 1;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi -= 1;
+            bHi -= 1;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            Arrays.fill(changedA, aLo, aHi, true);
+            Arrays.fill(changedB, bLo, bHi, true);
+            return;
+        }
+        int[] split = middle(aLo, aHi, bLo, bHi);
+        if (split == null) {
+            Arrays.fill(changedA, aLo, aHi, true);
+            Arrays.fill(changedB, bLo, bHi, true);
+            return;
+        }
+        compare(aLo, split[0], bLo, split[1]);
+        compare(split[0], aHi, split[1], bHi);
+    }
+
+    /**
+     * @return a point {x, y} on a shortest edit script of a[aLo, aHi) and
+     *         b[bLo, bHi) (or on a short one, if that is too costly to
+     *         find), strictly between its ends, or null if there is none.
+     */
+    private int[] middle(int aLo, int aHi, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int maxD = (n + m + 1) / 2;
+        int maxCost = Math.max(MIN_COST, (int) Math.sqrt(n + m));
+        // no diagonal beyond the last step searched is reached.
+        int span = Math.min(maxD, maxCost + 1);
+        int offset = span + 1;
+        // furthest x reached on each diagonal k = x - y, from the start
+        // (forward) and, counting from the ends, from the end (backward).
+        int[] forward = new int[2 * span + 3];
+        int[] backward = new int[2 * span + 3];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        // the paths can only meet in the forward pass if delta is odd.
+        boolean front = (delta & 1) != 0;
+        // diagonals which ran off the edges, no longer searched.
+        int fStart = 0;
+        int fEnd = 0;
+        int bStart = 0;
+        int bEnd = 0;
+        for (int d = 0; d < maxD; d += 1) {
+            if (d > maxCost) {
+                return furthest(forward, offset, d - 1, fStart, fEnd, aLo, bLo, n, m);
+            }
+            for (int k = -d + fStart; k <= d - fEnd; k += 2) {
+                int x = k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])
+                    ? forward[offset + k + 1] : forward[offset + k - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                forward[offset + k] = x;
+                if (x > n) {
+                    fEnd += 2;
+                } else if (y > m) {
+                    fStart += 2;
+                } else if (front) {
+                    int other = offset + delta - k;
+                    if (other >= 0 && other < backward.length && backward[other] != -1
+                        && x >= n - backward[other]) {
+                        return new int[] {aLo + x, bLo + y};
+                    }
+                }
+            }
+            for (int k = -d + bStart; k <= d - bEnd; k += 2) {
+                int x = k == -d || (k != d && backward[offset + k - 1] < backward[offset + k + 1])
+                    ? backward[offset + k + 1] : backward[offset + k - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aHi - x - 1] == b[bHi - y - 1]) {
+                    x += 1;
+                    y += 1;
+                }
+                backward[offset + k] = x;
+                if (x > n) {
+                    bEnd += 2;
+                } else if (y > m) {
+                    bStart += 2;
+                } else if (!front) {
+                    int other = offset + delta - k;
+                    if (other >= 0 && other < forward.length && forward[other] != -1) {
+                        int fx = forward[other];
+                        int fy = fx - (delta - k);
+                        if (fx >= n - x) {
+                            return new int[] {aLo + fx, bLo + fy};
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the point of the forward search furthest from the start
+     *         after D steps, or null if it is an end.
+     */
+    private static int[] furthest(int[] forward, int offset, int d, int fStart, int fEnd,
+                                  int aLo, int bLo, int n, int m) {
+        int bestX = -1;
+        int bestY = -1;
+        for (int k = -d + fStart; k <= d - fEnd; k += 2) {
+            int x = Math.min(forward[offset + k], n);
+            int y = x - k;
+            if (y >= 0 && y <= m && x + y > bestX + bestY) {
+                bestX = x;
+                bestY = y;
+            }
+        }
+        if (bestX < 0 || bestX + bestY == 0 || bestX == n && bestY == m) {
+            return null;
+        }
+        return new int[] {aLo + bestX, bLo + bestY};
+    }
+
+    /**
+     * <pre>
+     * The unified diff of the lines A and B, given their EDITS:
+     *
+     *     @@ -start,count +start,count @@
+     *      a line of context
+     *     -a line of A only
+     *     +a line of B only
+     *
+     * with CONTEXT lines of context around each change.
+     * <pre>
+     */
+    static String unified(List<String> a, List<String> b, List<Edit> edits) {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < edits.size()) {
+            // changes closer than twice the context share a hunk.
+            int j = i;
+            while (j + 1 < edits.size()
+                && edits.get(j + 1).aStart - edits.get(j).aEnd <= 2 * CONTEXT) {
+                j += 1;
+            }
+            Edit first = edits.get(i);
+            Edit last = edits.get(j);
+            int aStart = Math.max(0, first.aStart - CONTEXT);
+            int bStart = first.bStart - (first.aStart - aStart);
+            int aEnd = Math.min(a.size(), last.aEnd + CONTEXT);
+            int bEnd = last.bEnd + (aEnd - last.aEnd);
+            sb.append("@@ -").append(range(aStart, aEnd))
+                .append(" +").append(range(bStart, bEnd)).append(" @@\n");
+            int pos = aStart;
+            for (int e = i; e <= j; e += 1) {
+                Edit edit = edits.get(e);
+                appendLines(sb, " ", a, pos, edit.aStart);
+                appendLines(sb, "-", a, edit.aStart, edit.aEnd);
+                appendLines(sb, "+", b, edit.bStart, edit.bEnd);
+                pos = edit.aEnd;
+            }
+            appendLines(sb, " ", a, pos, aEnd);
+            i = j + 1;
+        }
+        return sb.toString();
+    }
+
+    private static String range(int start, int end) {
+        if (end - start == 1) {
+            return String.valueOf(start + 1);
+        }
+        // an empty range names the line before it.
+        return (end == start ? start : start + 1) + "," + (end - start);
+    }
+
+    private static void appendLines(StringBuilder sb, String prefix, List<String> lines,
+                                    int start, int end) {
+        for (int i = start; i < end; i += 1) {
+            String line = lines.get(i);
+            sb.append(prefix).append(line);
+            if (!line.endsWith("\n")) {
+                sb.append("\n\\ No newline at end of file\n");
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Utils.*;
+
+/**
+ * <pre>
+ * Exclusive lock on a file of the repository (the stage, HEAD, a branch,
+ * the config), so that processes sharing a repository do not overwrite
+ * each other's changes.
+ *
+ * Locking FILE creates FILE.lock, which fails while another process holds
+ * it; the lock is released by deleting it. Holding the lock, a process
+ * reads FILE, then replaces it by writing FILE.lock.tmp, forcing it to
+ * disk and renaming it over FILE: a reader, or a process after a crash,
+ * sees the old contents or the new ones, never a file half written.
+ *
+ * A process waits up to TIMEOUT for a lock, backing off at random, but
+ * fails at once on a lock it holds already: locks are not re-entrant,
+ * and it would wait in vain. A lock left by a process killed while
+ * holding it has to be deleted by hand, as it cannot be told apart from
+ * one held by a slow process.
+ * <pre>
+ */
+class LockFile implements AutoCloseable {
+
+    static final String SUFFIX = ".lock";
+    private static final String TMP_SUFFIX = SUFFIX + ".tmp";
+
+    /** Longest wait for a lock, in milliseconds. */
+    private static final long TIMEOUT = 5000;
+
+    /** Longest sleep between two attempts, in milliseconds. */
+    private static final long MAX_BACKOFF = 100;
+
+    private final File target;
+    private final File lock;
+    private boolean held;
+
+    private LockFile(File target) {
+        this.target = target;
+        this.lock = new File(target.getPath() + SUFFIX);
+    }
+
+    /**
+     * Lock TARGET, waiting for another process holding it.
+     * @return the lock, to be closed by the caller.
+     */
+    static LockFile acquire(File target) {
+        LockFile res = new LockFile(target);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+        long backoff = 1;
+        while (!res.create()) {
+            if (res.heldByThisProcess()) {
+                exit("Unable to create '%s': File exists. This process holds it already"
+                    + " and did not release it.", res.lock);
+            }
+            if (System.nanoTime() > deadline) {
+                exit("Unable to create '%s': File exists. Another gitlet process seems"
+                    + " to be running in this repository; if not, remove the file.", res.lock);
+            }
+            try {
+                Thread.sleep(1 + ThreadLocalRandom.current().nextLong(backoff));
+            } catch (InterruptedException excp) {
+                Thread.currentThread().interrupt();
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            backoff = Math.min(2 * backoff, MAX_BACKOFF);
+        }
+        return res;
+    }
+
+    /**
+     * @return the lock of TARGET, or null if another process holds it.
+     */
+    static LockFile tryAcquire(File target) {
+        LockFile res = new LockFile(target);
+        return res.create() ? res : null;
+    }
+
+    /**
+     * @return whether NAME is the name of a lock, or of a file written
+     *         under one, rather than of a file of the repository.
+     */
+    static boolean isLockFile(String name) {
+        return name.endsWith(SUFFIX) || name.endsWith(TMP_SUFFIX);
+    }
+
+    private boolean create() {
+        try {
+            // records who holds the lock, for whoever finds it left behind.
+            Files.write(lock.toPath(), String.valueOf(ProcessHandle.current().pid())
+                .getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW);
+            held = true;
+            return true;
+        } catch (FileAlreadyExistsException excp) {
+            return false;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * @return whether the lock file names this process as its holder.
+     */
+    private boolean heldByThisProcess() {
+        try {
+            String pid = new String(Files.readAllBytes(lock.toPath()), StandardCharsets.UTF_8);
+            return pid.equals(String.valueOf(ProcessHandle.current().pid()));
+        } catch (IOException excp) {
+            // released meanwhile, or not written yet.
+            return false;
+        }
+    }
+
+    /**
+     * Replace the locked file by the concatenation of CONTENTS, each a
+     * String or a byte array, at once.
+     */
+    void write(Object... contents) {
+        if (!held) {
+            throw new IllegalStateException("not locked: " + target);
+        }
+        File tmp = new File(target.getPath() + TMP_SUFFIX);
+        writeContents(tmp, contents);
+        SyncBatch.force(tmp);
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        SyncBatch.forceDirectory(target.getParentFile());
+    }
+
+    /**
+     * Delete the locked file.
+     */
+    void delete() {
+        if (!held) {
+            throw new IllegalStateException("not locked: " + target);
+        }
+        target.delete();
+    }
+
+    /**
+     * Release the lock, if still held.
+     */
+    @Override
+    public void close() {
+        if (held) {
+            held = false;
+            lock.delete();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package gitlet;
+
+import static gitlet.Utils.*;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+/**
+ * <pre>
+ * The options of log and global-log:
+ *
+ *     -n N             print at most N commits
+ *     --since DATE     only the commits made at or after DATE
+ *     --until DATE     only the commits made at or before DATE
+ *     --oneline        one line per commit: abbreviated id and message
+ *
+ * DATE is yyyy-MM-dd (the start of that day) or yyyy-MM-ddTHH:mm[:ss],
+ * in the local time zone. --since=DATE, --until=DATE and -nN are
+ * accepted too.
+ * <pre>
+ */
+class LogOptions {
+
+    /** The options of log without arguments. */
+    static final LogOptions DEFAULT = new LogOptions();
+
+    /** Most commits printed. */
+    private int limit = Integer.MAX_VALUE;
+
+    /** Bounds on the timestamps printed (ms), inclusive. */
+    private long since = Long.MIN_VALUE;
+    private long until = Long.MAX_VALUE;
+
+    private boolean oneline;
+
+    /**
+     * @param args the arguments after the command
+     * @return the options ARGS give, exiting on an unknown one.
+     */
+    static LogOptions parse(List<String> args) {
+        LogOptions res = new LogOptions();
+        for (int i = 0; i < args.size(); i += 1) {
+            String arg = args.get(i);
+            String value = null;
+            int eq = arg.indexOf('=');
+            if (arg.startsWith("--") && eq > 0) {
+                value = arg.substring(eq + 1);
+                arg = arg.substring(0, eq);
+            } else if (arg.startsWith("-n") && arg.length() > 2) {
+                value = arg.substring(2);
+                arg = "-n";
+            }
+            if (arg.equals("--oneline") && value == null) {
+                res.oneline = true;
+                continue;
+            }
+            if (value == null) {
+                i += 1;
+                if (i == args.size()) {
+                    exit("Incorrect operands.");
+                }
+                value = args.get(i);
+            }
+            switch (arg) {
+                case "-n" -> res.limit = parseLimit(value);
+                case "--since" -> res.since = parseDate(value);
+                case "--until" -> res.until = parseDate(value);
+                default -> exit("Incorrect operands.");
+            }
+        }
+        return res;
+    }
+
+    private static int parseLimit(String value) {
+        try {
+            int limit = Integer.parseInt(value);
+            if (limit >= 0) {
+                return limit;
+            }
+        } catch (NumberFormatException excp) {
+            // reported below.
+        }
+        throw error("Incorrect operands.");
+    }
+
+    static long parseDate(String value) {
+        try {
+            LocalDateTime time = value.contains("T") ? LocalDateTime.parse(value)
+                : LocalDate.parse(value).atStartOfDay();
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException excp) {
+            throw error("Invalid date: %s", value);
+        }
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    boolean isOneline() {
+        return oneline;
+    }
+
+    /**
+     * @return whether a commit made at TIMESTAMP (ms) is printed.
+     */
+    boolean accepts(long timestamp) {
+        return timestamp >= since && timestamp <= until;
+    }
+
+    /**
+     * @return whether a commit made at TIMESTAMP (ms) is older than
+     *         any printed, so a walk back in time may stop there.
+     */
+    boolean isBefore(long timestamp) {
+        return timestamp < since;
+    }
+}
@@ -2,12 +2,16 @@ package gitlet;
 
 import static gitlet.Utils.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /** Driver class for Gitlet, a subset of the Git version-control system.
  *  @author krmmzs
  *
  * <pre>
- * 1. Incorporating trees into commits and not dealing with subdirectories (so there will
- * be one “flat” directory of plain files for each repository).
+ * 1. Incorporating trees into commits: the files of a commit are a tree of
+ * subdirectories (see Tree), and commands take paths relative to the working directory.
  *
  * 2. Limiting ourselves to merges that reference two parents (in real Git,
  * there can be any number of parents.)
@@ -21,13 +25,41 @@ public class Main {
 
     /** Usage: java gitlet.Main ARGS, where ARGS contains
      *  <COMMAND> <OPERAND1> <OPERAND2> ... 
+     *
+     *  java gitlet.Main daemon serves the commands of gitlet.Client
+     *  instead, see Daemon.
      */
     public static void main(String[] args) {
+        try {
+            if (args.length == 1 && args[0].equals("daemon")) {
+                Daemon.serve(Client.socketPath());
+                return;
+            }
+            try (Repository repo = new Repository()) {
+                run(args, repo);
+            }
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        }
+    }
+
+    /**
+     * Run the command ARGS on REPO. A command failing for the user
+     * throws a GitletException with the message to print (see Utils.exit).
+     */
+    static void run(String[] args, Repository repo) {
         if (args.length == 0) {
             exit("Please enter a command.");
         }
 
-        Repository repo = new Repository();
+        try {
+            dispatch(args, repo);
+        } finally {
+            repo.unlock();
+        }
+    }
+
+    private static void dispatch(String[] args, Repository repo) {
         String firstArg = args[0];
         switch(firstArg) {
             case "init" -> {
@@ -35,9 +67,11 @@ public class Main {
                 repo.init();
             }
             case "add" -> {
-                validateNumArgs(args, 2);
+                if (args.length < 2) {
+                    exit("Incorrect operands.");
+                }
                 repo.checkInit();
-                repo.add(args[1]);
+                repo.add(Arrays.asList(args).subList(1, args.length));
             }
             case "commit" -> {
                 validateNumArgs(args, 2);
@@ -50,14 +84,14 @@ public class Main {
                 repo.rm(args[1]);
             }
             case "log" -> {
-                validateNumArgs(args, 1);
+                LogOptions options = LogOptions.parse(Arrays.asList(args).subList(1, args.length));
                 repo.checkInit();
-                repo.log();
+                repo.log(options);
             }
             case "global-log" -> {
-                validateNumArgs(args, 1);
+                LogOptions options = LogOptions.parse(Arrays.asList(args).subList(1, args.length));
                 repo.checkInit();
-                repo.globalLog();
+                repo.globalLog(options);
             }
             case "find" -> {
                 validateNumArgs(args, 2);
@@ -108,6 +142,25 @@ public class Main {
                 repo.checkInit();
                 repo.merge(args[1]);
             }
+            case "merge-base" -> {
+                repo.checkInit();
+                if (args.length == 4) {
+                    isEqual(args[1], "--all");
+                    repo.mergeBase(true, args[2], args[3]);
+                } else {
+                    validateNumArgs(args, 3);
+                    repo.mergeBase(false, args[1], args[2]);
+                }
+            }
+            case "diff" -> {
+                List<String> operands = new ArrayList<>(Arrays.asList(args).subList(1, args.length));
+                boolean cached = operands.remove("--cached");
+                if (operands.size() > (cached ? 1 : 2)) {
+                    exit("Incorrect operands.");
+                }
+                repo.checkInit();
+                repo.diff(cached, operands);
+            }
             case "add-remote" -> {
                 validateNumArgs(args, 3);
                 repo.checkInit();
@@ -133,6 +186,30 @@ public class Main {
                 repo.checkInit();
                 repo.pull(args[1], args[2]);
             }
+            case "repack" -> {
+                validateNumArgs(args, 1);
+                repo.checkInit();
+                repo.repack();
+            }
+            case "gc" -> {
+                if (args.length > 2 || args.length == 2 && !args[1].startsWith("--prune=")) {
+                    exit("Incorrect operands.");
+                }
+                repo.checkInit();
+                repo.gc(args.length == 2 ? args[1].substring("--prune=".length()) : null);
+            }
+            case "reflog" -> {
+                if (args.length > 2) {
+                    exit("Incorrect operands.");
+                }
+                repo.checkInit();
+                repo.reflog(args.length == 2 ? args[1] : "HEAD");
+            }
+            case "fsck" -> {
+                validateNumArgs(args, 1);
+                repo.checkInit();
+                repo.fsck();
+            }
             default -> exit("No command with that name exists.");
         }
     }
@@ -0,0 +1,164 @@
+package gitlet;
+
+import java.util.List;
+
+/**
+ * <pre>
+ * Three-way line merge of two versions of a file from their common
+ * ancestor, as diff3 does.
+ *
+ * Both versions are diffed against the ancestor (see LineDiff). Changes
+ * of one side which overlap or touch no change of the other are taken as
+ * they are; the regions where both sides changed are a conflict, unless
+ * both made the same change, written as
+ *
+ *     <<<<<<< HEAD
+ *     the lines of ours
+ *     =======
+ *     the lines of theirs
+ *     >>>>>>>
+ *
+ * Files changed throughout on both sides, as single-line files are,
+ * therefore still conflict as a whole.
+ * <pre>
+ */
+class Merge3 {
+
+    private final List<String> base;
+    private final List<String> ours;
+    private final List<String> theirs;
+    private final StringBuilder out = new StringBuilder();
+    private boolean conflict;
+
+    private Merge3(String base, String ours, String theirs) {
+        this.base = LineDiff.lines(base);
+        this.ours = LineDiff.lines(ours);
+        this.theirs = LineDiff.lines(theirs);
+    }
+
+    /**
+     * @param base the common ancestor, "" if there is none
+     * @param ours the current version, "" if deleted
+     * @param theirs the version merged in, "" if deleted
+     * @return the merge, with conflict markers where it failed.
+     */
+    static Merge3 merge(String base, String ours, String theirs) {
+        Merge3 res = new Merge3(base, ours, theirs);
+        res.run();
+        return res;
+    }
+
+    /**
+     * @param ours the current version, "" if deleted
+     * @param theirs the version merged in, "" if deleted
+     * @return OURS and THEIRS in conflict as a whole, whatever their
+     *         lines: a file deleted on one side and changed on the other.
+     */
+    static Merge3 conflict(String ours, String theirs) {
+        Merge3 res = new Merge3("", ours, theirs);
+        res.conflict = true;
+        res.out.append("<<<<<<< HEAD\n");
+        res.appendLines(res.ours, 0, res.ours.size());
+        res.out.append("=======\n");
+        res.appendLines(res.theirs, 0, res.theirs.size());
+        res.out.append(">>>>>>>\n");
+        return res;
+    }
+
+    String getText() {
+        return out.toString();
+    }
+
+    boolean hasConflict() {
+        return conflict;
+    }
+
+    private void run() {
+        List<LineDiff.Edit> oursEdits = LineDiff.diff(base, ours);
+        List<LineDiff.Edit> theirsEdits = LineDiff.diff(base, theirs);
+        int i = 0;
+        int j = 0;
+        // line count of each side minus that of the base, before pos.
+        int oursShift = 0;
+        int theirsShift = 0;
+        int pos = 0;
+        while (i < oursEdits.size() || j < theirsEdits.size()) {
+            // the hunk: base lines [lo, hi) and the edits of each side
+            // [i, iEnd), [j, jEnd) which overlap or touch it.
+            int lo = Math.min(startOf(oursEdits, i), startOf(theirsEdits, j));
+            int hi = lo;
+            int iEnd = i;
+            int jEnd = j;
+            boolean grown = true;
+            while (grown) {
+                grown = false;
+                if (iEnd < oursEdits.size() && oursEdits.get(iEnd).aStart <= hi) {
+                    hi = Math.max(hi, oursEdits.get(iEnd).aEnd);
+                    iEnd += 1;
+                    grown = true;
+                }
+                if (jEnd < theirsEdits.size() && theirsEdits.get(jEnd).aStart <= hi) {
+                    hi = Math.max(hi, theirsEdits.get(jEnd).aEnd);
+                    jEnd += 1;
+                    grown = true;
+                }
+            }
+            append(base, pos, lo);
+
+            int oursLo = lo + oursShift;
+            int theirsLo = lo + theirsShift;
+            for (int e = i; e < iEnd; e += 1) {
+                LineDiff.Edit edit = oursEdits.get(e);
+                oursShift += (edit.bEnd - edit.bStart) - (edit.aEnd - edit.aStart);
+            }
+            for (int e = j; e < jEnd; e += 1) {
+                LineDiff.Edit edit = theirsEdits.get(e);
+                theirsShift += (edit.bEnd - edit.bStart) - (edit.aEnd - edit.aStart);
+            }
+            int oursHi = hi + oursShift;
+            int theirsHi = hi + theirsShift;
+
+            if (jEnd == j) {
+                append(ours, oursLo, oursHi);
+            } else if (iEnd == i || same(oursLo, oursHi, theirsLo, theirsHi)) {
+                append(theirs, theirsLo, theirsHi);
+            } else {
+                conflict = true;
+                out.append("<<<<<<< HEAD\n");
+                appendLines(ours, oursLo, oursHi);
+                out.append("=======\n");
+                appendLines(theirs, theirsLo, theirsHi);
+                out.append(">>>>>>>\n");
+            }
+            i = iEnd;
+            j = jEnd;
+            pos = hi;
+        }
+        append(base, pos, base.size());
+    }
+
+    private static int startOf(List<LineDiff.Edit> edits, int i) {
+        return i < edits.size() ? edits.get(i).aStart : Integer.MAX_VALUE;
+    }
+
+    private boolean same(int oursLo, int oursHi, int theirsLo, int theirsHi) {
+        return ours.subList(oursLo, oursHi).equals(theirs.subList(theirsLo, theirsHi));
+    }
+
+    private void append(List<String> lines, int start, int end) {
+        for (int i = start; i < end; i += 1) {
+            out.append(lines.get(i));
+        }
+    }
+
+    /**
+     * Append lines between conflict markers, which need the last one
+     * ended.
+     */
+    private void appendLines(List<String> lines, int start, int end) {
+        append(lines, start, end);
+        if (end > start && !lines.get(end - 1).endsWith("\n")) {
+            out.append("\n");
+        }
+    }
+}
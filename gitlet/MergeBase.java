@@ -0,0 +1,262 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <pre>
+ * Merge-base engine over the commit graph.
+ *
+ * Both sides are painted down to their common ancestors, always expanding
+ * the commit with the highest generation number first. A commit painted
+ * by both sides is a common ancestor; everything below it is marked stale
+ * and the walk stops as soon as only stale commits are left, so its cost
+ * depends on the distance from the tips to the merge bases, not on the
+ * depth of the history. The flags of the commits are kept in one int
+ * array, indexed by commit number and grown with the graph, which every
+ * walk leaves cleared: it clears the commits it flagged only, so a walk
+ * costs nothing for the commits it does not visit.
+ *
+ * In a criss-cross history there may be several best common ancestors
+ * (none an ancestor of another); all of them are reported.
+ * <pre>
+ */
+class MergeBase {
+
+    private static final int PARENT1 = 1;
+    private static final int PARENT2 = 1 << 1;
+    private static final int STALE = 1 << 2;
+    private static final int RESULT = 1 << 3;
+    private static final int QUEUED = 1 << 4;
+    private static final int SEEN = 1 << 5;
+
+    private final CommitGraph graph;
+
+    /** Commit number -> flags of the walk under way, zero outside of one. */
+    private int[] flags = new int[0];
+
+    /** The commits flagged by the walk under way, to clear once it ends. */
+    private int[] touched = new int[64];
+    private int touchedCount;
+
+    /** Binary heap of the commits queued by paintDownToCommon, best first. */
+    private int[] heap = new int[64];
+    private int heapSize;
+
+    /** Stack of the commits to visit by isAncestor. */
+    private int[] stack = new int[64];
+
+    MergeBase(CommitGraph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * @param one commit number
+     * @param two commit number
+     * @return the best common ancestors of ONE and TWO, best first
+     *         (highest generation, then most recent).
+     */
+    List<Integer> all(int one, int two) {
+        if (one == two) {
+            return new ArrayList<>(List.of(one));
+        }
+        List<Integer> candidates = paintDownToCommon(one, two);
+        List<Integer> res = new ArrayList<>();
+        for (int c : candidates) {
+            boolean redundant = false;
+            for (int other : candidates) {
+                if (other != c && isAncestor(c, other)) {
+                    redundant = true;
+                    break;
+                }
+            }
+            if (!redundant) {
+                res.add(c);
+            }
+        }
+        res.sort((a, b) -> compare(b, a));
+        return res;
+    }
+
+    /**
+     * @return the best merge base of ONE and TWO, or -1 if they share no history.
+     */
+    int best(int one, int two) {
+        List<Integer> bases = all(one, two);
+        return bases.isEmpty() ? -1 : bases.get(0);
+    }
+
+    /**
+     * @return whether ANCESTOR is reachable from DESCENDANT (or is it).
+     */
+    boolean isAncestor(int ancestor, int descendant) {
+        if (ancestor == descendant) {
+            return true;
+        }
+        int floor = graph.generationOf(ancestor);
+        start();
+        try {
+            int top = 0;
+            mark(descendant, SEEN);
+            stack[top++] = descendant;
+            while (top > 0) {
+                int c = stack[--top];
+                for (int p : graph.parentsOf(c)) {
+                    if (p == ancestor) {
+                        return true;
+                    }
+                    // nothing below the ancestor's generation can lead to it.
+                    if ((flags[p] & SEEN) == 0 && graph.generationOf(p) > floor) {
+                        mark(p, SEEN);
+                        if (top == stack.length) {
+                            stack = Arrays.copyOf(stack, 2 * stack.length);
+                        }
+                        stack[top++] = p;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            finish();
+        }
+    }
+
+    private List<Integer> paintDownToCommon(int one, int two) {
+        start();
+        try {
+            heapSize = 0;
+            List<Integer> res = new ArrayList<>();
+            mark(one, PARENT1);
+            mark(two, PARENT2);
+            enqueue(one);
+            enqueue(two);
+            // number of queued commits which are not stale.
+            int live = 2;
+            while (live > 0) {
+                int c = poll();
+                flags[c] &= ~QUEUED;
+                int f = flags[c] & (PARENT1 | PARENT2 | STALE);
+                if ((f & STALE) == 0) {
+                    live -= 1;
+                }
+                if (f == (PARENT1 | PARENT2)) {
+                    if ((flags[c] & RESULT) == 0) {
+                        flags[c] |= RESULT;
+                        res.add(c);
+                    }
+                    // ancestors of a common ancestor cannot be better ones.
+                    f |= STALE;
+                }
+                for (int p : graph.parentsOf(c)) {
+                    if ((flags[p] & f) == f) {
+                        continue;
+                    }
+                    boolean queued = (flags[p] & QUEUED) != 0;
+                    boolean wasLive = queued && (flags[p] & STALE) == 0;
+                    mark(p, f);
+                    boolean isLive = (flags[p] & STALE) == 0;
+                    if (!queued) {
+                        // generations only decrease along parents, so the
+                        // order of the queue does not depend on the flags.
+                        enqueue(p);
+                        wasLive = false;
+                    }
+                    live += (isLive ? 1 : 0) - (wasLive ? 1 : 0);
+                }
+            }
+            return res;
+        } finally {
+            finish();
+        }
+    }
+
+    /**
+     * Begin a walk, making room for the flags of every commit.
+     */
+    private void start() {
+        if (flags.length < graph.size()) {
+            flags = Arrays.copyOf(flags, graph.size());
+        }
+        touchedCount = 0;
+    }
+
+    /**
+     * End a walk, clearing the flags it set.
+     */
+    private void finish() {
+        for (int i = 0; i < touchedCount; i += 1) {
+            flags[touched[i]] = 0;
+        }
+        touchedCount = 0;
+    }
+
+    /**
+     * Add the flags F to commit C.
+     */
+    private void mark(int c, int f) {
+        if (flags[c] == 0) {
+            if (touchedCount == touched.length) {
+                touched = Arrays.copyOf(touched, 2 * touched.length);
+            }
+            touched[touchedCount++] = c;
+        }
+        flags[c] |= f;
+    }
+
+    /**
+     * Queue commit C, already marked, by the order of compare, best first.
+     */
+    private void enqueue(int c) {
+        flags[c] |= QUEUED;
+        if (heapSize == heap.length) {
+            heap = Arrays.copyOf(heap, 2 * heap.length);
+        }
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (compare(heap[parent], c) >= 0) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = c;
+    }
+
+    /**
+     * @return the best queued commit, removed from the queue.
+     */
+    private int poll() {
+        int res = heap[0];
+        int last = heap[--heapSize];
+        int i = 0;
+        while (2 * i + 1 < heapSize) {
+            int child = 2 * i + 1;
+            if (child + 1 < heapSize && compare(heap[child + 1], heap[child]) > 0) {
+                child += 1;
+            }
+            if (compare(last, heap[child]) >= 0) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+        return res;
+    }
+
+    /**
+     * Order commits by generation, then by timestamp, then by number.
+     */
+    private int compare(int a, int b) {
+        int cmp = Integer.compare(graph.generationOf(a), graph.generationOf(b));
+        if (cmp == 0) {
+            cmp = Long.compare(graph.timestampOf(a), graph.timestampOf(b));
+        }
+        if (cmp == 0) {
+            cmp = Integer.compare(a, b);
+        }
+        return cmp;
+    }
+}
@@ -0,0 +1,392 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+import static gitlet.Utils.*;
+
+/**
+ * <pre>
+ * Inverted index of the commit messages, so find reads the commits that
+ * may match instead of all of them.
+ *
+ * A message is split into tokens, the maximal runs of letters and digits.
+ * Commits are numbered in the order they were indexed, and each token has
+ * the sorted numbers of the commits using it. FILE is
+ *
+ *     magic "GLM" | version | commit count | token count
+ *     commit ids, raw, in the order of their numbers
+ *     token offsets, an int per token
+ *     entries, sorted by token:
+ *         token length | token | commit count | commit numbers
+ *
+ * where counts are ints in the header and varints in the entries, tokens
+ * are UTF-8, and each commit number but the first is stored as the gap
+ * from the previous one. Tokens are found by binary search in the mapped
+ * file, so a lookup reads a few pages of it.
+ *
+ * Commits indexed since FILE was written are appended to FILE.new, raw id
+ * then message, and merged into FILE once the journal holds
+ * JOURNAL_LIMIT bytes (see IdIndex).
+ * <pre>
+ */
+class MessageIndex {
+
+    private static final byte[] MAGIC = {'G', 'L', 'M'};
+    private static final int VERSION = 1;
+    private static final int HEADER = MAGIC.length + 1 + 2 * Integer.BYTES;
+
+    /** Largest journal, in bytes, before it is merged. */
+    private static final long JOURNAL_LIMIT = 64 << 10;
+
+    /**
+     * The indexed messages.
+     */
+    private final File file;
+
+    /**
+     * The messages indexed since the last merge.
+     */
+    private final File journal;
+
+    MessageIndex(File file) {
+        this.file = file;
+        this.journal = join(file.getParentFile(), file.getName() + ".new");
+    }
+
+    /**
+     * @return whether the index was ever written.
+     */
+    boolean exists() {
+        return file.isFile();
+    }
+
+    /**
+     * Index commit COMMITID with MESSAGE, merging the journal when it is
+     * full. Nothing is done before the index exists (see rebuild), as it
+     * would then miss the commits before this one.
+     */
+    void add(String commitId, String message) {
+        if (!exists()) {
+            return;
+        }
+        try (OutputStream out = new FileOutputStream(journal, true)) {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            record.write(uidToBytes(commitId));
+            byte[] raw = message.getBytes(StandardCharsets.UTF_8);
+            writeVarint(record, raw.length);
+            record.write(raw);
+            // one write, so a reader never sees half a record but at a crash.
+            out.write(record.toByteArray());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (journal.length() >= JOURNAL_LIMIT) {
+            Map<String, BitSet> postings = new TreeMap<>();
+            List<String> ids = readAll(postings);
+            for (Map.Entry<String, String> entry : readJournal().entrySet()) {
+                addPostings(postings, ids.size(), entry.getValue());
+                ids.add(entry.getKey());
+            }
+            write(ids, postings);
+        }
+    }
+
+    /**
+     * Replace the whole index with MESSAGES, commit id -> message.
+     */
+    void rebuild(Map<String, String> messages) {
+        Map<String, BitSet> postings = new TreeMap<>();
+        List<String> ids = new ArrayList<>(messages.size());
+        for (Map.Entry<String, String> entry : messages.entrySet()) {
+            addPostings(postings, ids.size(), entry.getValue());
+            ids.add(entry.getKey());
+        }
+        write(ids, postings);
+    }
+
+    /**
+     * <pre>
+     * The commits whose message may contain QUERY. A message containing
+     * QUERY has each token of QUERY: the first as the end of one of its
+     * tokens, the last as the start of one, the others whole (a single
+     * token as part of one). The commits having all of them are returned,
+     * to be checked against QUERY, with the commits of the journal that
+     * do contain it.
+     * <pre>
+     * @return the sorted ids of the commits, or null if QUERY has no
+     *         token and the index cannot narrow the search.
+     */
+    TreeSet<String> candidates(String query) {
+        List<int[]> spans = tokenSpans(query);
+        if (spans.isEmpty()) {
+            return null;
+        }
+        TreeSet<String> res = new TreeSet<>();
+        for (Map.Entry<String, String> entry : readJournal().entrySet()) {
+            if (entry.getValue().contains(query)) {
+                res.add(entry.getKey());
+            }
+        }
+        if (!exists()) {
+            return res;
+        }
+        ByteBuffer idx = map();
+        BitSet commits = null;
+        for (int[] span : spans) {
+            String token = query.substring(span[0], span[1]);
+            boolean first = span[0] == 0;
+            boolean last = span[1] == query.length();
+            BitSet having;
+            if (first && last) {
+                having = scan(idx, t -> t.contains(token));
+            } else if (first) {
+                having = scan(idx, t -> t.endsWith(token));
+            } else if (last) {
+                having = withPrefix(idx, token, false);
+            } else {
+                having = withPrefix(idx, token, true);
+            }
+            if (commits == null) {
+                commits = having;
+            } else {
+                commits.and(having);
+            }
+        }
+        for (int i = commits.nextSetBit(0); i >= 0; i = commits.nextSetBit(i + 1)) {
+            res.add(bytesToUid(idAt(idx, i), 0));
+        }
+        return res;
+    }
+
+    /**
+     * @return the [start, end) of each token of STR.
+     */
+    private static List<int[]> tokenSpans(String str) {
+        List<int[]> res = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= str.length(); i += 1) {
+            boolean word = i < str.length() && Character.isLetterOrDigit(str.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                res.add(new int[] {start, i});
+                start = -1;
+            }
+        }
+        return res;
+    }
+
+    private static void addPostings(Map<String, BitSet> postings, int number, String message) {
+        for (int[] span : tokenSpans(message)) {
+            postings.computeIfAbsent(message.substring(span[0], span[1]), k -> new BitSet())
+                .set(number);
+        }
+    }
+
+    /**
+     * @return the commits having a token matching TEST, read from every entry.
+     */
+    private BitSet scan(ByteBuffer idx, Predicate<String> test) {
+        BitSet res = new BitSet();
+        int count = idx.getInt(MAGIC.length + 1 + Integer.BYTES);
+        for (int i = 0; i < count; i += 1) {
+            ByteBuffer entry = entryAt(idx, i);
+            if (test.test(readToken(entry))) {
+                readPostings(entry, res);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return the commits having the token PREFIX if EXACT, else a
+     *         token starting with PREFIX.
+     */
+    private BitSet withPrefix(ByteBuffer idx, String prefix, boolean exact) {
+        BitSet res = new BitSet();
+        int count = idx.getInt(MAGIC.length + 1 + Integer.BYTES);
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (readToken(entryAt(idx, mid)).compareTo(prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < count; i += 1) {
+            ByteBuffer entry = entryAt(idx, i);
+            String token = readToken(entry);
+            if (exact ? !token.equals(prefix) : !token.startsWith(prefix)) {
+                break;
+            }
+            readPostings(entry, res);
+        }
+        return res;
+    }
+
+    private static ByteBuffer entryAt(ByteBuffer idx, int i) {
+        int commits = idx.getInt(MAGIC.length + 1);
+        int offsets = HEADER + commits * RAW_UID_LENGTH;
+        ByteBuffer res = idx.duplicate();
+        res.position(idx.getInt(offsets + i * Integer.BYTES));
+        return res;
+    }
+
+    private static byte[] idAt(ByteBuffer idx, int i) {
+        byte[] raw = new byte[RAW_UID_LENGTH];
+        idx.get(HEADER + i * RAW_UID_LENGTH, raw);
+        return raw;
+    }
+
+    private static String readToken(ByteBuffer entry) {
+        int length = (int) readVarint(entry);
+        byte[] raw = new byte[length];
+        entry.get(raw);
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+
+    private static void readPostings(ByteBuffer entry, BitSet into) {
+        int count = (int) readVarint(entry);
+        int number = 0;
+        for (int k = 0; k < count; k += 1) {
+            number += (int) readVarint(entry);
+            into.set(number);
+        }
+    }
+
+    /**
+     * @return the commit ids of the index in the order of their numbers,
+     *         with the postings of every token added to POSTINGS.
+     */
+    private List<String> readAll(Map<String, BitSet> postings) {
+        List<String> ids = new ArrayList<>();
+        if (!exists()) {
+            return ids;
+        }
+        ByteBuffer idx = ByteBuffer.wrap(readContents(file));
+        checkHeader(idx);
+        int commits = idx.getInt(MAGIC.length + 1);
+        int tokens = idx.getInt(MAGIC.length + 1 + Integer.BYTES);
+        for (int i = 0; i < commits; i += 1) {
+            ids.add(bytesToUid(idAt(idx, i), 0));
+        }
+        for (int i = 0; i < tokens; i += 1) {
+            ByteBuffer entry = entryAt(idx, i);
+            readPostings(entry, postings.computeIfAbsent(readToken(entry), k -> new BitSet()));
+        }
+        return ids;
+    }
+
+    /**
+     * @return commit id -> message of the journal, in the order added.
+     *         A record cut short by a crash is ignored.
+     */
+    private Map<String, String> readJournal() {
+        Map<String, String> res = new LinkedHashMap<>();
+        if (!journal.isFile()) {
+            return res;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(readContents(journal));
+        try {
+            while (buf.remaining() > RAW_UID_LENGTH) {
+                String id = bytesToUid(buf.array(), buf.position());
+                buf.position(buf.position() + RAW_UID_LENGTH);
+                byte[] raw = new byte[(int) readVarint(buf)];
+                buf.get(raw);
+                res.put(id, new String(raw, StandardCharsets.UTF_8));
+            }
+        } catch (RuntimeException excp) {
+            // the partial last record.
+        }
+        return res;
+    }
+
+    /**
+     * Write the index of IDS, numbered in order, and POSTINGS, then
+     * drop the journal.
+     */
+    private void write(List<String> ids, Map<String, BitSet> postings) {
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        List<Integer> offsets = new ArrayList<>(postings.size());
+        int base = HEADER + ids.size() * RAW_UID_LENGTH + postings.size() * Integer.BYTES;
+        try {
+            for (Map.Entry<String, BitSet> entry : postings.entrySet()) {
+                offsets.add(base + entries.size());
+                byte[] token = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                writeVarint(entries, token.length);
+                entries.write(token);
+                BitSet commits = entry.getValue();
+                writeVarint(entries, commits.cardinality());
+                int previous = 0;
+                for (int i = commits.nextSetBit(0); i >= 0; i = commits.nextSetBit(i + 1)) {
+                    writeVarint(entries, i - previous);
+                    previous = i;
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        ByteBuffer head = ByteBuffer.allocate(base);
+        head.put(MAGIC).put((byte) VERSION).putInt(ids.size()).putInt(postings.size());
+        for (String id : ids) {
+            head.put(uidToBytes(id));
+        }
+        for (int offset : offsets) {
+            head.putInt(offset);
+        }
+        File tmp = join(file.getParentFile(), file.getName() + ".tmp");
+        writeContents(tmp, head.array(), entries.toByteArray());
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        journal.delete();
+    }
+
+    private ByteBuffer map() {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer idx = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            checkHeader(idx);
+            return idx;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static void checkHeader(ByteBuffer idx) {
+        if (idx.limit() < HEADER) {
+            throw new IllegalArgumentException("bad message index");
+        }
+        for (int k = 0; k < MAGIC.length; k += 1) {
+            if (idx.get(k) != MAGIC[k]) {
+                throw new IllegalArgumentException("bad message index");
+            }
+        }
+        if (idx.get(MAGIC.length) != VERSION) {
+            throw new IllegalArgumentException("unknown message index version");
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <pre>
+ * Decoded objects of a repository (commits, trees and small blobs) by id,
+ * so that a walk reading the same object again, or a long-lived process
+ * running several commands, does not read and decode it again.
+ *
+ * The cache holds at most CAPACITY bytes, an object weighing about its
+ * encoded size, and evicts the least recently used objects first. Objects
+ * are content-addressed, so an entry never goes stale; callers must not
+ * change the objects they get.
+ * <pre>
+ */
+class ObjectCache {
+
+    /** Capacity of the cache of a repository, in bytes. */
+    static final long DEFAULT_CAPACITY = 32L << 20;
+
+    /**
+     * An object and its weight.
+     */
+    private static class Slot {
+        private final Object value;
+        private final long weight;
+
+        Slot(Object value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final long capacity;
+
+    /** id -> slot, least recently used first. */
+    private final LinkedHashMap<String, Slot> slots = new LinkedHashMap<>(64, 0.75f, true);
+
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    ObjectCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return the object ID if it is cached and of class TYPE, else null.
+     */
+    synchronized <T> T get(String id, Class<T> type) {
+        Slot slot = slots.get(id);
+        if (slot == null || !type.isInstance(slot.value)) {
+            misses += 1;
+            return null;
+        }
+        hits += 1;
+        return type.cast(slot.value);
+    }
+
+    /**
+     * Cache VALUE as the object ID, weighing WEIGHT bytes, evicting the
+     * least recently used objects as needed. Objects heavier than an
+     * eighth of the capacity are not cached, so one never flushes the rest.
+     */
+    synchronized void put(String id, Object value, long weight) {
+        if (weight > capacity / 8) {
+            return;
+        }
+        Slot old = slots.put(id, new Slot(value, weight));
+        if (old != null) {
+            size -= old.weight;
+        }
+        size += weight;
+        Iterator<Map.Entry<String, Slot>> it = slots.entrySet().iterator();
+        while (size > capacity && it.hasNext()) {
+            size -= it.next().getValue().weight;
+            it.remove();
+            evictions += 1;
+        }
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d objects, %d bytes, %d hits, %d misses, %d evictions",
+            slots.size(), size, hits, misses, evictions);
+    }
+}
@@ -0,0 +1,500 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * <pre>
+ * Content-addressed store of blob objects.
+ *
+ * A blob is keyed by the SHA-1 of its content only, so the same bytes
+ * under two file names (or in two clones) are stored once. Each object
+ * file is a small header followed by the raw or deflated content:
+ *
+ *     magic "GLB" | version | flags | content length (8 bytes) | body
+ *
+ * Objects written by older versions of gitlet (a serialized Blob) are
+ * still readable and are rewritten in the new format on first read,
+ * under the lock of their file (see LockFile).
+ *
+ * Objects missing from the directory are looked up in the packs, if any.
+ *
+ * Loose object files are fanned out by the first two hex digits of their
+ * id (dir/ab/cdef...), which keeps directories small as history grows.
+ * Objects of the older flat layout (dir/abcdef...) are still found.
+ *
+ * Objects are written to a temporary file renamed into place, and forced
+ * to disk with the other objects of the command (see SyncBatch).
+ * <pre>
+ */
+class ObjectStore {
+
+    /** Magic bytes opening every object file. */
+    private static final byte[] MAGIC = {'G', 'L', 'B'};
+
+    /** Version of the object file format. */
+    private static final int VERSION = 1;
+
+    /** Flag set when the body is deflated. */
+    private static final int FLAG_DEFLATED = 1;
+
+    /** Length of the object header in bytes. */
+    private static final int HEADER_LENGTH = MAGIC.length + 2 + Long.BYTES;
+
+    /** Content smaller than this is stored raw, compressing it is not worth it. */
+    private static final long COMPRESS_THRESHOLD = 512;
+
+    /** First two bytes of a Java serialization stream (legacy Blob objects). */
+    private static final int LEGACY_MAGIC = 0xACED;
+
+    /** Number of hex digits of an id naming its fan-out directory. */
+    private static final int FAN_OUT = 2;
+
+    /** Largest content kept in the object cache. */
+    private static final int MAX_CACHED_SIZE = 1 << 16;
+
+    /** Size of the buffers used when streaming contents. */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The directory holding the object files.
+     */
+    private final File dir;
+
+    /**
+     * Packs holding the objects which are not loose, may be null.
+     */
+    private final PackDirectory packs;
+
+    /**
+     * Cache of the small objects read whole, may be null.
+     */
+    private final ObjectCache cache;
+
+    /**
+     * The objects written and not forced to disk yet, may be null.
+     */
+    private final SyncBatch batch;
+
+    ObjectStore(File dir, PackDirectory packs) {
+        this(dir, packs, null, null);
+    }
+
+    ObjectStore(File dir, PackDirectory packs, ObjectCache cache, SyncBatch batch) {
+        this.dir = dir;
+        this.packs = packs;
+        this.cache = cache;
+        this.batch = batch;
+    }
+
+    /**
+     * @param id blob id
+     * @return whether this store holds the blob.
+     */
+    boolean contains(String id) {
+        return isLoose(id) || packs != null && packs.contains(id);
+    }
+
+    /**
+     * @param id blob id
+     * @return whether the blob is stored in its own file rather than in a pack.
+     */
+    boolean isLoose(String id) {
+        return fileFor(id).isFile();
+    }
+
+    /**
+     * @return the ids of the loose objects of this store.
+     */
+    List<String> looseIds() {
+        return looseIdsIn(dir);
+    }
+
+    /**
+     * @return when the loose file of blob ID was last written (ms), 0 if
+     *         it has none.
+     */
+    long lastModified(String id) {
+        return fileFor(id).lastModified();
+    }
+
+    /**
+     * Delete the loose file of blob ID.
+     */
+    void deleteLoose(String id) {
+        File file = fileFor(id);
+        file.delete();
+        if (!file.getParentFile().equals(dir)) {
+            // only succeeds once the fan-out directory is empty.
+            file.getParentFile().delete();
+        }
+        if (batch != null) {
+            batch.addDirectory(file.getParentFile());
+        }
+    }
+
+    /**
+     * @param dir objects directory
+     * @param id object id
+     * @return the fanned out file of object ID, or its flat legacy file
+     *         if only that one exists.
+     */
+    static File looseFileIn(File dir, String id) {
+        if (id.length() <= FAN_OUT) {
+            return Utils.join(dir, id);
+        }
+        File file = Utils.join(dir, id.substring(0, FAN_OUT), id.substring(FAN_OUT));
+        if (!file.exists()) {
+            File flat = Utils.join(dir, id);
+            if (flat.isFile()) {
+                return flat;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * @param dir objects directory
+     * @return the sorted ids of the loose objects in DIR, in either layout.
+     */
+    static List<String> looseIdsIn(File dir) {
+        List<String> res = new ArrayList<>();
+        File[] entries = dir.listFiles();
+        if (entries == null) {
+            return res;
+        }
+        for (File entry : entries) {
+            String name = entry.getName();
+            if (entry.isDirectory() && name.length() == FAN_OUT) {
+                String[] rests = entry.list();
+                for (String rest : rests == null ? new String[0] : rests) {
+                    if (name.length() + rest.length() == Utils.UID_LENGTH) {
+                        res.add(name + rest);
+                    }
+                }
+            } else if (name.length() == Utils.UID_LENGTH) {
+                res.add(name);
+            }
+        }
+        Collections.sort(res);
+        return res;
+    }
+
+    /**
+     * Stream the contents of SOURCE into the store under ID,
+     * doing nothing if the object is already present.
+     * @param id content hash of SOURCE
+     * @param source working file
+     */
+    void write(String id, File source) {
+        if (isLoose(id)) {
+            return;
+        }
+        try (InputStream in = new FileInputStream(source)) {
+            write(id, in, source.length());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Stream SIZE bytes from IN into the store under ID.
+     * @param id content hash of the bytes
+     * @param in content
+     * @param size length of the content
+     */
+    void write(String id, InputStream in, long size) {
+        File target = fileFor(id);
+        if (target.exists()) {
+            return;
+        }
+        boolean deflate = size >= COMPRESS_THRESHOLD;
+        File tmp = tempFileFor(id);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE)) {
+            writeHeader(out, deflate, size);
+            if (deflate) {
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                DeflaterOutputStream body = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+                in.transferTo(body);
+                body.finish();
+                deflater.end();
+            } else {
+                in.transferTo(out);
+            }
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        moveInto(tmp, target);
+    }
+
+    /**
+     * Open the content of blob ID as a stream. The caller must close it.
+     * @param id blob id
+     * @return the uncompressed content
+     */
+    InputStream open(String id) {
+        File file = fileFor(id);
+        if (!file.isFile() && packs != null) {
+            InputStream packed = packs.open(id);
+            if (packed != null) {
+                return packed;
+            }
+        }
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+            in.mark(HEADER_LENGTH);
+            DataInputStream data = new DataInputStream(in);
+            if (data.readUnsignedShort() == LEGACY_MAGIC) {
+                in.close();
+                return new ByteArrayInputStream(upgradeLegacy(id));
+            }
+            in.reset();
+            boolean deflated = readHeader(data, file);
+            if (deflated) {
+                Inflater inflater = new Inflater();
+                return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inflater.end();
+                    }
+                };
+            }
+            return in;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * @param id blob id
+     * @return the whole content of blob ID, which must not be changed:
+     *         small contents are cached.
+     */
+    byte[] read(String id) {
+        byte[] res = cache == null ? null : cache.get(id, byte[].class);
+        if (res != null) {
+            return res;
+        }
+        try (InputStream in = open(id)) {
+            res = in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (cache != null && res.length <= MAX_CACHED_SIZE) {
+            cache.put(id, res, res.length);
+        }
+        return res;
+    }
+
+    /**
+     * Stream the content of blob ID into TARGET, creating or overwriting it.
+     * @param id blob id
+     * @param target working file
+     */
+    void copyTo(String id, File target) {
+        try (InputStream in = open(id);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(target), BUFFER_SIZE)) {
+            in.transferTo(out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * @param id blob id
+     * @return the length of the content of blob ID.
+     */
+    long size(String id) {
+        File file = fileFor(id);
+        if (!file.isFile() && packs != null) {
+            long size = packs.sizeOf(id);
+            if (size >= 0) {
+                return size;
+            }
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readUnsignedShort() == LEGACY_MAGIC) {
+                return read(id).length;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.skipBytes(MAGIC.length + 2);
+            return in.readLong();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Move the loose object ID of OTHER into this store.
+     * @param other store holding the object
+     * @param id blob id
+     */
+    void moveFrom(ObjectStore other, String id) {
+        File source = other.fileFor(id);
+        File target = fileFor(id);
+        target.getParentFile().mkdirs();
+        moveInto(source, target);
+        other.deleteLoose(id);
+    }
+
+    /**
+     * Copy the stored object ID from OTHER, as is if it is loose there.
+     * @param other store holding the object
+     * @param id blob id
+     */
+    void copyFrom(ObjectStore other, String id) {
+        File target = fileFor(id);
+        if (contains(id)) {
+            return;
+        }
+        if (!other.isLoose(id)) {
+            try (InputStream in = other.open(id)) {
+                write(id, in, other.size(id));
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            return;
+        }
+        File tmp = tempFileFor(id);
+        try {
+            Files.copy(other.fileFor(id).toPath(), tmp.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        moveInto(tmp, target);
+    }
+
+    private File fileFor(String id) {
+        return looseFileIn(dir, id);
+    }
+
+    private File tempFileFor(String id) {
+        File file = fileFor(id);
+        file.getParentFile().mkdirs();
+        return Utils.join(file.getParentFile(), file.getName() + ".tmp");
+    }
+
+    private void writeHeader(OutputStream out, boolean deflate, long size) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(MAGIC);
+        data.writeByte(VERSION);
+        data.writeByte(deflate ? FLAG_DEFLATED : 0);
+        data.writeLong(size);
+    }
+
+    /**
+     * @return whether the body following the header is deflated.
+     */
+    private boolean readHeader(DataInputStream data, File file) throws IOException {
+        for (byte b : MAGIC) {
+            if (data.readByte() != b) {
+                throw new IllegalArgumentException("bad object file " + file.getName());
+            }
+        }
+        int version = data.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("unknown object version " + version);
+        }
+        int flags = data.readUnsignedByte();
+        data.readLong();
+        return (flags & FLAG_DEFLATED) != 0;
+    }
+
+    /**
+     * Decode the serialized Blob stored under ID and store its content
+     * again in the current format. The id is kept, commits refer to it.
+     * The file is rewritten under its lock, by the first reader taking
+     * it; the others only decode it.
+     * @return the content of the blob
+     */
+    private byte[] upgradeLegacy(String id) {
+        File file = fileFor(id);
+        byte[] content;
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
+            content = ((Blob) in.readObject()).getContent();
+        } catch (IOException | ClassCastException | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (content == null) {
+            content = new byte[0];
+        }
+        try (LockFile lock = LockFile.tryAcquire(file)) {
+            // upgraded, or deleted, by another process meanwhile.
+            if (lock != null && isLegacy(file)) {
+                lock.write((Object) encode(content));
+            }
+        }
+        return content;
+    }
+
+    /**
+     * @return whether FILE holds a serialized Blob.
+     */
+    private static boolean isLegacy(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readUnsignedShort() == LEGACY_MAGIC;
+        } catch (IOException excp) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the object file holding CONTENT, in the current format.
+     */
+    private byte[] encode(byte[] content) {
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        try {
+            boolean deflate = content.length >= COMPRESS_THRESHOLD;
+            writeHeader(res, deflate, content.length);
+            if (deflate) {
+                DeflaterOutputStream body = new DeflaterOutputStream(res);
+                body.write(content);
+                body.close();
+            } else {
+                res.write(content);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return res.toByteArray();
+    }
+
+    private void moveInto(File tmp, File target) {
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (batch != null) {
+            batch.add(target);
+        }
+    }
+}
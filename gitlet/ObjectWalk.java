@@ -0,0 +1,278 @@
+package gitlet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * <pre>
+ * Enumerates the objects (commits, trees and blobs) reachable from
+ * commits, for push, fetch and gc.
+ *
+ * The objects of the bitmapped pack are a bitset over its objects (see
+ * PackBitmaps), the others are kept by id. A commit having a bitmap adds
+ * it as a whole, without reading the commit or any of its ancestors, so
+ * "reachable from X but not from Y" is mostly an OR of the bitmaps of X
+ * and those of Y, then an AND NOT. Without bitmaps the commits are walked
+ * through the commit graph, and their trees read, skipping the subtrees
+ * seen already.
+ * <pre>
+ */
+class ObjectWalk {
+
+    /** Every this many commits (in commit-graph order) gets a bitmap. */
+    static final int BITMAP_INTERVAL = 64;
+
+    /**
+     * A set of objects: bits of the bitmapped pack, and the others by id.
+     */
+    static class ObjectSet {
+
+        private final PackBitmaps bitmaps;
+
+        /** Objects of the bitmapped pack. */
+        private final BitSet packed = new BitSet();
+
+        /** Object id -> PackFile.COMMIT, TREE or BLOB, in the order added. */
+        private final Map<String, Integer> others = new LinkedHashMap<>();
+
+        ObjectSet(PackBitmaps bitmaps) {
+            this.bitmaps = bitmaps;
+        }
+
+        /**
+         * Add object ID of type TYPE.
+         * @return whether it was not in the set.
+         */
+        boolean add(String id, int type) {
+            int bit = bitmaps == null ? -1 : bitmaps.bitOf(id);
+            if (bit < 0) {
+                return others.putIfAbsent(id, type) == null;
+            }
+            if (packed.get(bit)) {
+                return false;
+            }
+            packed.set(bit);
+            return true;
+        }
+
+        boolean contains(String id) {
+            int bit = bitmaps == null ? -1 : bitmaps.bitOf(id);
+            return bit < 0 ? others.containsKey(id) : packed.get(bit);
+        }
+
+        /**
+         * Remove the objects of OTHER from this set.
+         */
+        void removeAll(ObjectSet other) {
+            packed.andNot(other.packed);
+            others.keySet().removeAll(other.others.keySet());
+        }
+
+        /**
+         * Call ACTION with the id and type of every object of the set.
+         */
+        void forEach(BiConsumer<String, Integer> action) {
+            for (int bit = packed.nextSetBit(0); bit >= 0; bit = packed.nextSetBit(bit + 1)) {
+                action.accept(bitmaps.idAt(bit), bitmaps.typeAt(bit));
+            }
+            others.forEach(action);
+        }
+    }
+
+    private final CommitGraph graph;
+
+    /**
+     * Reads a commit by id.
+     */
+    private final Function<String, Commit> commits;
+
+    private final TreeStore trees;
+
+    /**
+     * The bitmaps of the pack, or null.
+     */
+    private final PackBitmaps bitmaps;
+
+    ObjectWalk(CommitGraph graph, Function<String, Commit> commits, TreeStore trees,
+               PackBitmaps bitmaps) {
+        this.graph = graph;
+        this.commits = commits;
+        this.trees = trees;
+        this.bitmaps = bitmaps;
+    }
+
+    /**
+     * @param tips complete commit ids; unknown ones are ignored
+     * @return the objects reachable from TIPS.
+     */
+    ObjectSet reachable(Collection<String> tips) {
+        ObjectSet res = new ObjectSet(bitmaps);
+        walk(indexesOf(tips), new BitSet(), true, res);
+        return res;
+    }
+
+    /**
+     * Add to INTO the trees TREEIDS, and their subtrees and blobs.
+     */
+    void addTrees(Collection<String> treeIds, ObjectSet into) {
+        for (String treeId : treeIds) {
+            addTree(treeId, into);
+        }
+    }
+
+    /**
+     * <pre>
+     * The objects reachable from WANTS and not from HAVES.
+     *
+     * With bitmaps, all the objects of HAVES are found as those of WANTS,
+     * then taken out. Without,
+     * only the trees of the commits of HAVES bordering the commits of
+     * WANTS are read, the "edge" of the history sent: an object of an
+     * older commit of HAVES may then be in the result.
+     * <pre>
+     * @param wants complete commit ids
+     * @param haves complete commit ids; unknown ones are ignored
+     */
+    ObjectSet missing(Collection<String> wants, Collection<String> haves) {
+        int[] haveIndexes = indexesOf(haves);
+        BitSet haveCommits = graph.reachable(haveIndexes);
+        ObjectSet res = new ObjectSet(bitmaps);
+        List<Integer> edge = walk(indexesOf(wants), haveCommits, true, res);
+        ObjectSet have = new ObjectSet(bitmaps);
+        if (bitmaps != null) {
+            walk(haveIndexes, new BitSet(), true, have);
+        } else {
+            walk(edge.stream().mapToInt(Integer::intValue).toArray(), new BitSet(), false, have);
+        }
+        res.removeAll(have);
+        return res;
+    }
+
+    /**
+     * Give the branch tips TIPS, and every BITMAP_INTERVAL-th commit of
+     * the pack, their bitmap, and write the bitmaps.
+     */
+    void writeBitmaps(Collection<String> tips) {
+        List<Integer> selected = new ArrayList<>();
+        for (int i : indexesOf(tips)) {
+            selected.add(i);
+        }
+        for (int i = 0; i < graph.size(); i += BITMAP_INTERVAL) {
+            selected.add(i);
+        }
+        // parents first, so that each reuses the bitmaps of its ancestors.
+        selected.sort(null);
+        for (int i : selected) {
+            String id = graph.idAt(i);
+            if (bitmaps.bitOf(id) < 0 || bitmaps.get(id) != null) {
+                continue;
+            }
+            ObjectSet objects = new ObjectSet(bitmaps);
+            walk(new int[] {i}, new BitSet(), true, objects);
+            // all of them packed, or the bitmap would hide the others.
+            if (objects.others.isEmpty()) {
+                bitmaps.put(id, objects.packed);
+            }
+        }
+        bitmaps.write();
+    }
+
+    private int[] indexesOf(Collection<String> ids) {
+        List<Integer> res = new ArrayList<>();
+        for (String id : ids) {
+            int i = graph.indexOf(id);
+            if (i >= 0) {
+                res.add(i);
+            }
+        }
+        return res.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * <pre>
+     * Add to INTO the commits FROM, and their trees and blobs, then those
+     * of their ancestors if PARENTS, skipping the commits in SKIP.
+     * A commit or tree found in INTO is skipped with all it reaches, as
+     * it was added with all of it.
+     * <pre>
+     * @return the commits of SKIP whose children were added.
+     */
+    private List<Integer> walk(int[] from, BitSet skip, boolean parents, ObjectSet into) {
+        List<Integer> edge = new ArrayList<>();
+        BitSet seen = new BitSet();
+        Deque<Integer> stack = new ArrayDeque<>();
+        for (int i : from) {
+            stack.push(i);
+        }
+        while (!stack.isEmpty()) {
+            int i = stack.pop();
+            if (seen.get(i)) {
+                continue;
+            }
+            seen.set(i);
+            if (skip.get(i)) {
+                edge.add(i);
+                continue;
+            }
+            String id = graph.idAt(i);
+            BitSet bitmap = bitmaps == null ? null : bitmaps.get(id);
+            if (bitmap != null) {
+                into.packed.or(bitmap);
+                continue;
+            }
+            if (!into.add(id, PackFile.COMMIT)) {
+                continue;
+            }
+            addCommitTree(commits.apply(id), into);
+            if (parents) {
+                for (int p : graph.parentsOf(i)) {
+                    stack.push(p);
+                }
+            }
+        }
+        return edge;
+    }
+
+    /**
+     * Add the trees and blobs of COMMIT to INTO.
+     */
+    private void addCommitTree(Commit commit, ObjectSet into) {
+        if (commit.getTreeId() == null) {
+            // an older commit, naming its files itself.
+            for (String blobId : commit.getBlobs().values()) {
+                into.add(blobId, PackFile.BLOB);
+            }
+            return;
+        }
+        addTree(commit.getTreeId(), into);
+    }
+
+    /**
+     * Add to INTO the tree TREEID, and its subtrees and blobs.
+     */
+    private void addTree(String treeId, ObjectSet into) {
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(treeId);
+        while (!stack.isEmpty()) {
+            String id = stack.pop();
+            if (id.equals(Tree.EMPTY_ID) || !into.add(id, PackFile.TREE)) {
+                continue;
+            }
+            for (Tree.Entry entry : trees.read(id).getEntries().values()) {
+                if (entry.isTree()) {
+                    stack.push(entry.getId());
+                } else {
+                    into.add(entry.getId(), PackFile.BLOB);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+import static gitlet.Utils.*;
+
+/**
+ * <pre>
+ * Reachability bitmaps of a pack: for some of its commits, the set of
+ * the objects of the pack reachable from the commit (the commit, its
+ * ancestors and all of their trees and blobs), as a bitmap.
+ *
+ * Bit N stands for the N-th object written to the pack. Objects are
+ * written by history (commits, then the trees and blobs of each commit
+ * in turn), so the objects reachable from a commit are mostly runs of
+ * bits, which Ewah compresses well. The order is stable for the life of
+ * the pack. pack-NAME.bitmap, next to the pack, is
+ *
+ *     magic "GLR" | version | object count | commit count
+ *     bit of each object, an int each, in the order of the index
+ *     entries: commit id (20 bytes) | encoded length | bitmap (see Ewah)
+ *
+ * with counts as ints and the encoded length a varint. Bitmaps are
+ * decoded on first use. See ObjectWalk for how they are built and used.
+ * <pre>
+ */
+class PackBitmaps {
+
+    private static final byte[] MAGIC = {'G', 'L', 'R'};
+    private static final int VERSION = 1;
+
+    private final PackFile pack;
+
+    /** Position in the index -> bit. */
+    private final int[] bitOf;
+
+    /** Bit -> position in the index. */
+    private final int[] indexOf;
+
+    /** Commit id -> its bitmap, encoded or decoded. */
+    private final Map<String, Object> bitmaps = new HashMap<>();
+
+    private PackBitmaps(PackFile pack, int[] bitOf) {
+        this.pack = pack;
+        this.bitOf = bitOf;
+        this.indexOf = new int[bitOf.length];
+        for (int i = 0; i < bitOf.length; i += 1) {
+            indexOf[bitOf[i]] = i;
+        }
+    }
+
+    /**
+     * @return the bitmap file of PACK.
+     */
+    static File fileOf(PackFile pack) {
+        String name = pack.getIndexFile().getName();
+        return join(pack.getIndexFile().getParentFile(),
+            name.substring(0, name.length() - ".idx".length()) + ".bitmap");
+    }
+
+    /**
+     * @return new bitmaps of PACK, none for any commit yet.
+     */
+    static PackBitmaps create(PackFile pack) {
+        Integer[] byOffset = IntStream.range(0, pack.size()).boxed().toArray(Integer[]::new);
+        Arrays.sort(byOffset, Comparator.comparingLong(pack::offsetAt));
+        int[] bitOf = new int[byOffset.length];
+        for (int bit = 0; bit < byOffset.length; bit += 1) {
+            bitOf[byOffset[bit]] = bit;
+        }
+        return new PackBitmaps(pack, bitOf);
+    }
+
+    /**
+     * @return the bitmaps of PACK, or null if it has none or they do not
+     *         match the pack.
+     */
+    static PackBitmaps read(PackFile pack) {
+        File file = fileOf(pack);
+        if (!file.isFile()) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(readContents(file));
+        for (byte b : MAGIC) {
+            if (buf.get() != b) {
+                throw new IllegalArgumentException("bad bitmap file " + file.getName());
+            }
+        }
+        if (buf.get() != VERSION) {
+            throw new IllegalArgumentException("unknown bitmap version in " + file.getName());
+        }
+        int count = buf.getInt();
+        int commits = buf.getInt();
+        if (count != pack.size()) {
+            return null;
+        }
+        int[] bitOf = new int[count];
+        buf.asIntBuffer().get(bitOf);
+        buf.position(buf.position() + count * Integer.BYTES);
+        PackBitmaps res = new PackBitmaps(pack, bitOf);
+        for (int i = 0; i < commits; i += 1) {
+            String id = bytesToUid(buf.array(), buf.position());
+            buf.position(buf.position() + RAW_UID_LENGTH);
+            int length = (int) readVarint(buf);
+            res.bitmaps.put(id, buf.slice(buf.position(), length));
+            buf.position(buf.position() + length);
+        }
+        return res;
+    }
+
+    /**
+     * @return the bit of object ID, or -1 if it is not in the pack.
+     */
+    int bitOf(String id) {
+        int i = pack.indexOf(id);
+        return i < 0 ? -1 : bitOf[i];
+    }
+
+    String idAt(int bit) {
+        return pack.idAt(indexOf[bit]);
+    }
+
+    /**
+     * @return PackFile.COMMIT, BLOB or TREE.
+     */
+    int typeAt(int bit) {
+        return pack.typeAt(indexOf[bit]);
+    }
+
+    /**
+     * @return a copy of the bitmap of commit COMMITID, or null if it
+     *         has none.
+     */
+    BitSet get(String commitId) {
+        Object bitmap = bitmaps.get(commitId);
+        if (bitmap instanceof ByteBuffer) {
+            bitmap = Ewah.decode(((ByteBuffer) bitmap).duplicate());
+            bitmaps.put(commitId, bitmap);
+        }
+        return bitmap == null ? null : (BitSet) ((BitSet) bitmap).clone();
+    }
+
+    /**
+     * Give commit COMMITID the bitmap BITS.
+     */
+    void put(String commitId, BitSet bits) {
+        bitmaps.put(commitId, bits.clone());
+    }
+
+    /**
+     * Write the bitmaps next to the pack, replacing any.
+     */
+    void write() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer head = ByteBuffer.allocate(MAGIC.length + 1 + (2 + bitOf.length) * Integer.BYTES);
+        head.put(MAGIC).put((byte) VERSION).putInt(bitOf.length).putInt(bitmaps.size());
+        head.asIntBuffer().put(bitOf);
+        try {
+            out.write(head.array());
+            for (String id : new TreeMap<>(bitmaps).keySet()) {
+                byte[] encoded = Ewah.encode(get(id));
+                out.write(uidToBytes(id));
+                writeVarint(out, encoded.length);
+                out.write(encoded);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        File file = fileOf(pack);
+        File tmp = join(file.getParentFile(), file.getName() + ".tmp");
+        writeContents(tmp, (Object) out.toByteArray());
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
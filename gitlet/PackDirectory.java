@@ -0,0 +1,194 @@
+package gitlet;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * The packs of a repository (Objects/pack), looked up in turn. The packs
+ * are scanned on first use; a directory kept from one command to the next
+ * (see Daemon) is refreshed before each one, closing the packs deleted.
+ */
+class PackDirectory {
+
+    /**
+     * The pack directory.
+     */
+    private final File dir;
+
+    /**
+     * Lazy load for the packs of the directory.
+     */
+    private Lazy<List<PackFile>> packs = lazy(() -> scan());
+
+    private Lazy<PackBitmaps> bitmaps = lazy(() -> findBitmaps());
+
+    PackDirectory(File dir) {
+        this.dir = dir;
+    }
+
+    File getDir() {
+        return dir;
+    }
+
+    List<PackFile> getPacks() {
+        return packs.get();
+    }
+
+    boolean contains(String id) {
+        for (PackFile pack : packs.get()) {
+            if (pack.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the content of object ID, or null if no pack holds it.
+     */
+    byte[] read(String id) {
+        for (PackFile pack : packs.get()) {
+            byte[] content = pack.read(id);
+            if (content != null) {
+                return content;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the content of object ID as a stream, or null if no pack holds it.
+     */
+    InputStream open(String id) {
+        for (PackFile pack : packs.get()) {
+            InputStream in = pack.open(id);
+            if (in != null) {
+                return in;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the size of object ID, or -1 if no pack holds it.
+     */
+    long sizeOf(String id) {
+        for (PackFile pack : packs.get()) {
+            long size = pack.sizeOf(id);
+            if (size >= 0) {
+                return size;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param type PackFile.COMMIT or PackFile.BLOB
+     * @return the sorted ids of the packed objects of that type.
+     */
+    TreeSet<String> ids(int type) {
+        TreeSet<String> res = new TreeSet<>();
+        for (PackFile pack : packs.get()) {
+            res.addAll(pack.ids(type));
+        }
+        return res;
+    }
+
+    /**
+     * @return the reachability bitmaps of the first pack having them, or
+     *         null if none has.
+     */
+    PackBitmaps bitmaps() {
+        return bitmaps.get();
+    }
+
+    PackFile.Writer newWriter() {
+        return new PackFile.Writer(dir);
+    }
+
+    /**
+     * Delete every pack but KEEP, whose objects supersede theirs.
+     * @param keep the pack just written
+     */
+    void replaceAllWith(PackFile keep) {
+        for (PackFile pack : packs.get()) {
+            if (keep != null && pack.getIndexFile().equals(keep.getIndexFile())) {
+                continue;
+            }
+            pack.close();
+            PackBitmaps.fileOf(pack).delete();
+            pack.getIndexFile().delete();
+            pack.getPackFile().delete();
+        }
+        packs = lazy(() -> scan());
+        bitmaps = lazy(() -> findBitmaps());
+    }
+
+    /**
+     * Scan the directory again, for the packs other processes wrote or
+     * deleted meanwhile. The packs still there are kept open, the others
+     * closed.
+     */
+    void refresh() {
+        List<PackFile> old = packs.get();
+        List<PackFile> scanned = scan();
+        List<PackFile> res = new ArrayList<>(scanned.size());
+        boolean changed = old.size() != scanned.size();
+        for (PackFile pack : scanned) {
+            PackFile kept = null;
+            for (PackFile o : old) {
+                if (o.getIndexFile().equals(pack.getIndexFile())) {
+                    kept = o;
+                    break;
+                }
+            }
+            changed |= kept == null;
+            res.add(kept != null ? kept : pack);
+        }
+        for (PackFile o : old) {
+            if (!res.contains(o)) {
+                o.close();
+            }
+        }
+        if (changed) {
+            packs = lazy(() -> res);
+            bitmaps = lazy(() -> findBitmaps());
+        }
+    }
+
+    /**
+     * Close the packs, which are opened again by the next read.
+     */
+    void close() {
+        for (PackFile pack : packs.get()) {
+            pack.close();
+        }
+    }
+
+    private PackBitmaps findBitmaps() {
+        for (PackFile pack : packs.get()) {
+            PackBitmaps res = PackBitmaps.read(pack);
+            if (res != null) {
+                return res;
+            }
+        }
+        return null;
+    }
+
+    private List<PackFile> scan() {
+        List<PackFile> res = new ArrayList<>();
+        File[] files = dir.listFiles((d, name) -> name.startsWith("pack-") && name.endsWith(".idx"));
+        if (files == null) {
+            return res;
+        }
+        for (File file : files) {
+            res.add(new PackFile(file));
+        }
+        return res;
+    }
+}
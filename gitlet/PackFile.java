@@ -0,0 +1,648 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/**
+ * <pre>
+ * A pack: many objects consolidated into one append-only file, plus a
+ * sorted index from object id to offset. The index is read through a
+ * memory-mapped buffer, the pack at 64-bit offsets through a channel,
+ * so that a pack may outgrow what one buffer maps.
+ *
+ * pack-NAME.pack
+ *     magic "GLP" | version | entries...
+ *     entry: type | varint length | [base id, 20 bytes] | deflated data
+ *
+ * pack-NAME.idx
+ *     magic "GLI" | version | count | fanout[256]
+ *     | ids (20 bytes each, sorted) | offsets (8 bytes each) | types
+ *
+ * fanout[b] is the number of ids whose first byte is at most b, so the
+ * ids starting with b lie in [fanout[b - 1], fanout[b]).
+ *
+ * A DELTA entry holds the instructions (see Delta) rebuilding a blob from
+ * the base blob, which is always stored earlier in the same pack. The
+ * bases resolved on the way are kept in a small cache, so that reading a
+ * chain costs one inflation per entry rather than one per link below it.
+ * <pre>
+ */
+class PackFile {
+
+    /** Entry type of a commit. */
+    static final int COMMIT = 1;
+
+    /** Entry type of a whole blob. */
+    static final int BLOB = 2;
+
+    /** Entry type of a blob stored as a delta against another blob. */
+    static final int DELTA = 3;
+
+    /** Entry type of a tree. */
+    static final int TREE = 4;
+
+    /** Longest chain of deltas to resolve when reading a blob. */
+    static final int MAX_DELTA_DEPTH = 10;
+
+    /** Blobs larger than this are never delta encoded. */
+    static final long MAX_DELTA_SIZE = 1 << 24;
+
+    /** Largest object read whole into an array; larger ones are streamed. */
+    private static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /** Size of the buffer reading an entry read whole. */
+    private static final int ENTRY_BUFFER_SIZE = 8192;
+
+    /** Capacity of the cache of delta bases of a pack, in bytes. */
+    private static final long BASE_CACHE_CAPACITY = 16L << 20;
+
+    private static final byte[] PACK_MAGIC = {'G', 'L', 'P'};
+    private static final byte[] INDEX_MAGIC = {'G', 'L', 'I'};
+    private static final int VERSION = 1;
+    private static final int FANOUT = 256;
+    private static final int INDEX_HEADER = INDEX_MAGIC.length + 1 + Integer.BYTES;
+
+    /**
+     * The pack file.
+     */
+    private final File packFile;
+
+    /**
+     * The index file.
+     */
+    private final File indexFile;
+
+    /**
+     * The pack, open on first read, null until then and once closed.
+     */
+    private FileChannel pack;
+
+    private final Lazy<MappedByteBuffer> index = lazy(() -> openIndex());
+
+    /**
+     * The delta bases last resolved, by id.
+     */
+    private final ObjectCache bases = new ObjectCache(BASE_CACHE_CAPACITY);
+
+    /**
+     * Number of objects in this pack.
+     */
+    private int count;
+
+    /**
+     * @param indexFile pack-NAME.idx, next to pack-NAME.pack
+     */
+    PackFile(File indexFile) {
+        this.indexFile = indexFile;
+        String name = indexFile.getName();
+        this.packFile = join(indexFile.getParentFile(),
+            name.substring(0, name.length() - ".idx".length()) + ".pack");
+    }
+
+    File getPackFile() {
+        return packFile;
+    }
+
+    File getIndexFile() {
+        return indexFile;
+    }
+
+    /**
+     * @return number of objects in this pack.
+     */
+    int size() {
+        index.get();
+        return count;
+    }
+
+    /**
+     * @param i position in the index
+     * @return id of the i-th object in id order.
+     */
+    String idAt(int i) {
+        byte[] raw = new byte[RAW_UID_LENGTH];
+        index.get().get(idOffset(i), raw);
+        return bytesToUid(raw, 0);
+    }
+
+    /**
+     * @param i position in the index
+     * @return COMMIT, BLOB or TREE.
+     */
+    int typeAt(int i) {
+        int type = index.get().get(typeOffset(i));
+        return type == DELTA ? BLOB : type;
+    }
+
+    /**
+     * @param i position in the index
+     * @return offset of the entry of the i-th object in the pack: the
+     *         objects in the order they were written.
+     */
+    long offsetAt(int i) {
+        return index.get().getLong(offsetOffset(i));
+    }
+
+    boolean contains(String id) {
+        return find(id) >= 0;
+    }
+
+    /**
+     * @return position of ID in the index, or -1 if this pack lacks it.
+     */
+    int indexOf(String id) {
+        return find(id);
+    }
+
+    /**
+     * @param type COMMIT, BLOB or TREE
+     * @return the sorted ids of the objects of that type.
+     */
+    List<String> ids(int type) {
+        List<String> res = new ArrayList<>();
+        for (int i = 0; i < size(); i += 1) {
+            if (typeAt(i) == type) {
+                res.add(idAt(i));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return the content of object ID, or null if this pack lacks it.
+     */
+    byte[] read(String id) {
+        int i = find(id);
+        if (i < 0) {
+            return null;
+        }
+        try {
+            return readAt(index.get().getLong(offsetOffset(i)));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * @return the uncompressed size of object ID, or -1 if this pack lacks it.
+     */
+    long sizeOf(String id) {
+        int i = find(id);
+        if (i < 0) {
+            return -1;
+        }
+        try (InputStream in = entryAt(index.get().getLong(offsetOffset(i)), ENTRY_BUFFER_SIZE)) {
+            int type = in.read();
+            long length = readVarint(in);
+            if (type != DELTA) {
+                return length;
+            }
+            in.skipNBytes(RAW_UID_LENGTH);
+            // the target length is the second varint of the delta.
+            ByteBuffer delta = ByteBuffer.wrap(inflate(in, 20));
+            readVarint(delta);
+            return readVarint(delta);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Stream the content of object ID. Whole entries are inflated as they
+     * are read, deltas are resolved in memory.
+     * @return the content, or null if this pack lacks it.
+     */
+    InputStream open(String id) {
+        int i = find(id);
+        if (i < 0) {
+            return null;
+        }
+        long offset = index.get().getLong(offsetOffset(i));
+        try {
+            InputStream in = entryAt(offset, ObjectStore.BUFFER_SIZE);
+            int type = in.read();
+            if (type == DELTA) {
+                in.close();
+                return new ByteArrayInputStream(readAt(offset));
+            }
+            readVarint(in);
+            Inflater inflater = new Inflater();
+            return new InflaterInputStream(in, inflater, ObjectStore.BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    inflater.end();
+                }
+            };
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private byte[] readAt(long offset) throws IOException {
+        try (InputStream in = entryAt(offset, ENTRY_BUFFER_SIZE)) {
+            int type = in.read();
+            long length = readVarint(in);
+            if (length > MAX_ARRAY_SIZE) {
+                throw new IllegalArgumentException("object of " + length
+                    + " bytes too large to read whole in " + packFile.getName());
+            }
+            if (type != DELTA) {
+                return inflate(in, (int) length);
+            }
+            byte[] base = baseOf(bytesToUid(in.readNBytes(RAW_UID_LENGTH), 0));
+            return Delta.apply(base, inflate(in, (int) length));
+        }
+    }
+
+    /**
+     * @return the content of BASEID, a delta base in this pack, kept for
+     *         the next deltas against it: reading the versions of a file
+     *         in turn resolves each of them once, not its whole chain.
+     */
+    private byte[] baseOf(String baseId) {
+        byte[] res = bases.get(baseId, byte[].class);
+        if (res != null) {
+            return res;
+        }
+        res = read(baseId);
+        if (res == null) {
+            throw new IllegalArgumentException("missing delta base in " + packFile.getName());
+        }
+        bases.put(baseId, res, res.length);
+        return res;
+    }
+
+    /**
+     * @return a stream over the pack from OFFSET, reading BUFFERSIZE
+     *         bytes at a time. The caller must close it.
+     */
+    private InputStream entryAt(long offset, int bufferSize) {
+        return new BufferedInputStream(new ChannelInputStream(pack(), offset), bufferSize);
+    }
+
+    /**
+     * Inflate up to LENGTH bytes from the deflated data IN is at.
+     */
+    private static byte[] inflate(InputStream in, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            // not closed: that would close IN.
+            return new InflaterInputStream(in, inflater, ENTRY_BUFFER_SIZE).readNBytes(length);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return position of ID in the index, or -1.
+     */
+    private int find(String id) {
+        if (id.length() != UID_LENGTH) {
+            return -1;
+        }
+        byte[] raw = uidToBytes(id);
+        ByteBuffer idx = index.get();
+        int first = raw[0] & 0xFF;
+        int lo = first == 0 ? 0 : idx.getInt(INDEX_HEADER + (first - 1) * Integer.BYTES);
+        int hi = idx.getInt(INDEX_HEADER + first * Integer.BYTES);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareAt(mid, raw);
+            if (cmp == 0) {
+                return mid;
+            } else if (cmp < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compareAt(int i, byte[] raw) {
+        ByteBuffer idx = index.get();
+        int base = idOffset(i);
+        for (int k = 0; k < RAW_UID_LENGTH; k += 1) {
+            int cmp = Integer.compare(idx.get(base + k) & 0xFF, raw[k] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    private int idOffset(int i) {
+        return INDEX_HEADER + FANOUT * Integer.BYTES + i * RAW_UID_LENGTH;
+    }
+
+    private int offsetOffset(int i) {
+        return idOffset(count) + i * Long.BYTES;
+    }
+
+    private int typeOffset(int i) {
+        return offsetOffset(count) + i;
+    }
+
+    private MappedByteBuffer openIndex() {
+        MappedByteBuffer idx = map(indexFile);
+        for (byte b : INDEX_MAGIC) {
+            if (idx.get() != b) {
+                throw new IllegalArgumentException("bad pack index " + indexFile.getName());
+            }
+        }
+        if (idx.get() != VERSION) {
+            throw new IllegalArgumentException("unknown pack version in " + indexFile.getName());
+        }
+        count = idx.getInt();
+        return idx;
+    }
+
+    private static MappedByteBuffer map(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("pack index too large: " + file.getName());
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * @return the pack, open for reads at any offset, from any thread.
+     */
+    private synchronized FileChannel pack() {
+        if (pack == null) {
+            try {
+                pack = FileChannel.open(packFile.toPath(), StandardOpenOption.READ);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return pack;
+    }
+
+    /**
+     * Close the pack, if open, so that a deleted pack frees its space.
+     * It is opened again by the next read. The index stays mapped until
+     * collected.
+     */
+    synchronized void close() {
+        if (pack != null) {
+            try {
+                pack.close();
+            } catch (IOException excp) {
+                // only read from, nothing lost.
+            }
+            pack = null;
+        }
+    }
+
+    /**
+     * Writes a new pack and its index. Objects are appended in the order
+     * they are added; a delta base must be added before its deltas.
+     */
+    static class Writer {
+
+        /**
+         * Directory the pack is written to.
+         */
+        private final File dir;
+
+        /**
+         * Pack being written, renamed on finish.
+         */
+        private final File tmp;
+
+        private final CountingOutputStream out;
+
+        /**
+         * id -> offset of its entry.
+         */
+        private final Map<String, Long> offsets = new TreeMap<>();
+
+        /**
+         * id -> entry type.
+         */
+        private final Map<String, Integer> types = new TreeMap<>();
+
+        Writer(File dir) {
+            this.dir = dir;
+            dir.mkdirs();
+            this.tmp = join(dir, "tmp_pack_" + ProcessHandle.current().pid());
+            try {
+                this.out = new CountingOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp), ObjectStore.BUFFER_SIZE));
+                out.write(PACK_MAGIC);
+                out.write(VERSION);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+
+        boolean contains(String id) {
+            return offsets.containsKey(id);
+        }
+
+        /**
+         * Append a whole object.
+         * @param type COMMIT, BLOB or TREE
+         */
+        void add(String id, int type, byte[] content) {
+            add(id, type, new ByteArrayInputStream(content), content.length);
+        }
+
+        /**
+         * Append a whole object, streaming SIZE bytes of content from IN.
+         * @param type COMMIT, BLOB or TREE
+         */
+        void add(String id, int type, InputStream in, long size) {
+            if (contains(id)) {
+                return;
+            }
+            try {
+                startEntry(id, type, size);
+                writeDeflated(in);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+
+        /**
+         * Append blob ID as DELTA against BASEID, already in this pack.
+         */
+        void addDelta(String id, String baseId, byte[] delta) {
+            if (contains(id)) {
+                return;
+            }
+            try {
+                startEntry(id, DELTA, delta.length);
+                out.write(uidToBytes(baseId));
+                writeDeflated(new ByteArrayInputStream(delta));
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+
+        /**
+         * Close the pack, write its index and move both into place.
+         * @return the new pack, or null if no object was added.
+         */
+        PackFile finish() {
+            try {
+                out.close();
+                if (offsets.isEmpty()) {
+                    tmp.delete();
+                    return null;
+                }
+                String name = "pack-" + sha1(String.join("", offsets.keySet()));
+                File idxTmp = join(dir, tmp.getName() + ".idx");
+                writeIndex(idxTmp);
+                // on disk before the loose objects it replaces are deleted.
+                SyncBatch.force(tmp);
+                SyncBatch.force(idxTmp);
+                File packFile = join(dir, name + ".pack");
+                File idxFile = join(dir, name + ".idx");
+                Files.move(tmp.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                // the index goes last: a pack is only visible once it is complete.
+                Files.move(idxTmp.toPath(), idxFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                SyncBatch.forceDirectory(dir);
+                return new PackFile(idxFile);
+            } catch (IOException excp) {
+                tmp.delete();
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+
+        private void startEntry(String id, int type, long length) throws IOException {
+            offsets.put(id, out.getCount());
+            types.put(id, type);
+            out.write(type);
+            writeVarint(out, length);
+        }
+
+        private void writeDeflated(InputStream in) throws IOException {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            DeflaterOutputStream body = new DeflaterOutputStream(out, deflater, ObjectStore.BUFFER_SIZE);
+            in.transferTo(body);
+            body.finish();
+            deflater.end();
+        }
+
+        private void writeIndex(File file) throws IOException {
+            int[] fanout = new int[FANOUT];
+            for (String id : offsets.keySet()) {
+                fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+            }
+            for (int b = 1; b < FANOUT; b += 1) {
+                fanout[b] += fanout[b - 1];
+            }
+            try (DataOutputStream idx = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), ObjectStore.BUFFER_SIZE))) {
+                idx.write(INDEX_MAGIC);
+                idx.write(VERSION);
+                idx.writeInt(offsets.size());
+                for (int n : fanout) {
+                    idx.writeInt(n);
+                }
+                for (String id : offsets.keySet()) {
+                    idx.write(uidToBytes(id));
+                }
+                for (long offset : offsets.values()) {
+                    idx.writeLong(offset);
+                }
+                for (int type : types.values()) {
+                    idx.write(type);
+                }
+            }
+        }
+    }
+
+    /**
+     * Output stream keeping track of the number of bytes written.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count += 1;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Input stream over a channel from a position, by positional reads,
+     * so that streams over one channel do not disturb each other. Closing
+     * it leaves the channel open.
+     */
+    private static class ChannelInputStream extends InputStream {
+
+        private final FileChannel channel;
+
+        private long position;
+
+        ChannelInputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/**
+ * <pre>
+ * The branches of a repository: local ones ("master") and remote-tracking
+ * ones ("origin/master"), each pointing at a commit.
+ *
+ * A branch is a loose file (refs/heads/NAME, refs/remotes/REMOTE/NAME)
+ * holding its commit id, or a line of packed-refs, sorted by name:
+ *
+ *     commit id | " " | refs/heads/NAME or refs/remotes/REMOTE/NAME
+ *
+ * A loose file takes precedence over a packed line. Branches are moved
+ * as loose files, under their own lock (see LockFile), and repack moves
+ * them all to packed-refs, so that listing thousands of branches costs
+ * one read and a sorted map.
+ *
+ * Every move of a branch is appended to its reflog (logs/refs/...), and
+ * every move of the current commit to logs/HEAD, one line each:
+ *
+ *     old id | " " | new id | " " | time (ms) | "\t" | message
+ *
+ * with an id of zeros for no commit.
+ * <pre>
+ */
+class Refs {
+
+    /** The id standing for no commit in a reflog. */
+    static final String NO_ID = "0".repeat(UID_LENGTH);
+
+    /** Name of the reflog of the current commit. */
+    static final String HEAD = "HEAD";
+
+    private static final String HEADS_PREFIX = "refs/heads/";
+    private static final String REMOTES_PREFIX = "refs/remotes/";
+
+    /**
+     * A move of a branch.
+     */
+    static class LogEntry {
+        final String oldId;
+        final String newId;
+        final long time;
+        final String message;
+
+        LogEntry(String oldId, String newId, long time, String message) {
+            this.oldId = oldId;
+            this.newId = newId;
+            this.time = time;
+            this.message = message;
+        }
+    }
+
+    private final File gitletDir;
+    private final File headsDir;
+    private final File remotesDir;
+    private final File packedRefs;
+
+    /** The packed branches, read on first use, null until then. */
+    private TreeMap<String, String> packed;
+
+    Refs(File gitletDir) {
+        this.gitletDir = gitletDir;
+        this.headsDir = join(gitletDir, "refs", "heads");
+        this.remotesDir = join(gitletDir, "refs", "remotes");
+        this.packedRefs = join(gitletDir, "packed-refs");
+    }
+
+    /**
+     * @return the commit id branch NAME points at, or null if there is
+     *         no such branch.
+     */
+    String get(String name) {
+        File file = fileOf(name);
+        if (file == null) {
+            return null;
+        }
+        if (file.isFile()) {
+            return readContentsAsString(file);
+        }
+        return packed().get(name);
+    }
+
+    /**
+     * @return name -> commit id of the local branches, sorted by name.
+     */
+    SortedMap<String, String> local() {
+        TreeMap<String, String> res = new TreeMap<>();
+        for (Map.Entry<String, String> e : packed().entrySet()) {
+            if (!e.getKey().contains("/")) {
+                res.put(e.getKey(), e.getValue());
+            }
+        }
+        readLoose(headsDir, "", res);
+        return res;
+    }
+
+    /**
+     * @return name -> commit id of all the branches, local and
+     *         remote-tracking, sorted by name.
+     */
+    SortedMap<String, String> all() {
+        TreeMap<String, String> res = new TreeMap<>(packed());
+        readLoose(headsDir, "", res);
+        File[] remotes = remotesDir.listFiles(File::isDirectory);
+        for (File remote : remotes == null ? new File[0] : remotes) {
+            readLoose(remote, remote.getName() + "/", res);
+        }
+        return res;
+    }
+
+    /**
+     * Point branch NAME at NEWID, if it points at OLDID (or whatever it
+     * points at, for a null OLDID), and log the move with MESSAGE.
+     * @return the id the branch pointed at, null if it did not exist.
+     */
+    String update(String name, String oldId, String newId, String message) {
+        File file = fileOf(name);
+        try (LockFile lock = LockFile.acquire(file)) {
+            String current = file.isFile() ? readContentsAsString(file) : readPacked().get(name);
+            if (oldId != null && !oldId.equals(current)) {
+                exit("Cannot update %s: it moved since it was read.", name);
+            }
+            log(name, current, newId, message);
+            lock.write(newId);
+            return current;
+        }
+    }
+
+    /**
+     * Create branch NAME pointing at ID, logging MESSAGE.
+     * @return false, creating nothing, if the branch exists already.
+     */
+    boolean create(String name, String id, String message) {
+        File file = fileOf(name);
+        try (LockFile lock = LockFile.acquire(file)) {
+            if (file.isFile() || readPacked().containsKey(name)) {
+                return false;
+            }
+            log(name, null, id, message);
+            lock.write(id);
+            return true;
+        }
+    }
+
+    /**
+     * Delete branch NAME, loose and packed, with its reflog.
+     */
+    void delete(String name) {
+        File file = fileOf(name);
+        try (LockFile lock = LockFile.acquire(file)) {
+            removePacked(name, null);
+            lock.delete();
+        }
+        logFileOf(name).delete();
+    }
+
+    /**
+     * Delete the remote-tracking branches of REMOTENAME which are packed,
+     * and their reflogs. The loose ones go with their directory.
+     */
+    void deleteRemote(String remoteName) {
+        removePacked(null, remoteName + "/");
+        deleteRec(join(gitletDir, "logs", "refs", "remotes", remoteName));
+    }
+
+    /**
+     * Move all the loose branches to packed-refs. A branch moved by
+     * another process meanwhile stays loose.
+     */
+    void pack() {
+        TreeMap<String, String> loose = new TreeMap<>();
+        readLoose(headsDir, "", loose);
+        File[] remotes = remotesDir.listFiles(File::isDirectory);
+        for (File remote : remotes == null ? new File[0] : remotes) {
+            readLoose(remote, remote.getName() + "/", loose);
+        }
+        if (loose.isEmpty()) {
+            return;
+        }
+        try (LockFile lock = LockFile.acquire(packedRefs)) {
+            TreeMap<String, String> refs = readPacked();
+            refs.putAll(loose);
+            writePacked(lock, refs);
+        }
+        for (Map.Entry<String, String> e : loose.entrySet()) {
+            File file = fileOf(e.getKey());
+            try (LockFile lock = LockFile.tryAcquire(file)) {
+                if (lock != null && file.isFile()
+                    && e.getValue().equals(readContentsAsString(file))) {
+                    lock.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Append the move of NAME (a branch, or HEAD) from OLDID to NEWID to
+     * its reflog. Null ids stand for no commit.
+     */
+    void log(String name, String oldId, String newId, String message) {
+        File file = logFileOf(name);
+        file.getParentFile().mkdirs();
+        String line = (oldId == null ? NO_ID : oldId) + " " + (newId == null ? NO_ID : newId)
+            + " " + System.currentTimeMillis() + "\t" + message.replace('\n', ' ') + "\n";
+        try {
+            // one write of one line: appends of other processes do not interleave.
+            Files.write(file.toPath(), line.getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * @return the moves of NAME (a branch, or HEAD), latest first.
+     */
+    List<LogEntry> readLog(String name) {
+        List<LogEntry> res = new ArrayList<>();
+        File file = logFileOf(name);
+        if (!file.isFile()) {
+            return res;
+        }
+        for (String line : readContentsAsString(file).split("\n")) {
+            int tab = line.indexOf('\t');
+            String[] fields = (tab < 0 ? "" : line.substring(0, tab)).split(" ");
+            if (fields.length != 3) {
+                // a line cut short by a crash.
+                continue;
+            }
+            res.add(new LogEntry(fields[0], fields[1], Long.parseLong(fields[2]),
+                line.substring(tab + 1)));
+        }
+        Collections.reverse(res);
+        return res;
+    }
+
+    /**
+     * Drop the moves of NAME (a branch, or HEAD) logged before BEFORE (ms).
+     * The log of a branch is rewritten under the lock of the branch, that
+     * of HEAD under the lock of the stage, which the caller holds.
+     */
+    void expireLog(String name, long before) {
+        File file = logFileOf(name);
+        if (!file.isFile()) {
+            return;
+        }
+        if (name.equals(HEAD)) {
+            rewriteLog(file, before);
+            return;
+        }
+        LockFile lock = LockFile.acquire(fileOf(name));
+        try {
+            rewriteLog(file, before);
+        } finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * Rewrite reflog FILE without the moves logged before BEFORE (ms).
+     */
+    private static void rewriteLog(File file, long before) {
+        StringBuilder kept = new StringBuilder();
+        boolean expired = false;
+        for (String line : readContentsAsString(file).split("\n")) {
+            int tab = line.indexOf('\t');
+            String[] fields = (tab < 0 ? "" : line.substring(0, tab)).split(" ");
+            if (fields.length == 3 && Long.parseLong(fields[2]) >= before) {
+                kept.append(line).append('\n');
+            } else {
+                expired = true;
+            }
+        }
+        if (!expired) {
+            return;
+        }
+        File tmp = join(file.getParentFile(), file.getName() + ".tmp");
+        writeContents(tmp, kept.toString());
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * @return the loose file of branch NAME, or null if NAME cannot be
+     *         the name of a branch.
+     */
+    private File fileOf(String name) {
+        String[] parts = name.split("/");
+        if (parts.length == 1) {
+            return join(headsDir, name);
+        } else if (parts.length == 2) {
+            return join(remotesDir, parts[0], parts[1]);
+        }
+        return null;
+    }
+
+    private File logFileOf(String name) {
+        if (name.equals(HEAD)) {
+            return join(gitletDir, "logs", HEAD);
+        }
+        return join(gitletDir, "logs", refNameOf(name));
+    }
+
+    /**
+     * @return the name in packed-refs of branch NAME.
+     */
+    private static String refNameOf(String name) {
+        return (name.contains("/") ? REMOTES_PREFIX : HEADS_PREFIX) + name;
+    }
+
+    /**
+     * Add the loose branches of DIR to REFS, their names prefixed by PREFIX.
+     */
+    private static void readLoose(File dir, String prefix, Map<String, String> refs) {
+        List<String> names = plainFilenamesIn(dir);
+        for (String name : names == null ? List.<String>of() : names) {
+            if (!LockFile.isLockFile(name)) {
+                refs.put(prefix + name, readContentsAsString(join(dir, name)));
+            }
+        }
+    }
+
+    private TreeMap<String, String> packed() {
+        if (packed == null) {
+            packed = readPacked();
+        }
+        return packed;
+    }
+
+    private TreeMap<String, String> readPacked() {
+        TreeMap<String, String> res = new TreeMap<>();
+        if (!packedRefs.isFile()) {
+            return res;
+        }
+        for (String line : readContentsAsString(packedRefs).split("\n")) {
+            int space = line.indexOf(' ');
+            if (space != UID_LENGTH) {
+                continue;
+            }
+            String ref = line.substring(space + 1);
+            if (ref.startsWith(HEADS_PREFIX)) {
+                res.put(ref.substring(HEADS_PREFIX.length()), line.substring(0, space));
+            } else if (ref.startsWith(REMOTES_PREFIX)) {
+                res.put(ref.substring(REMOTES_PREFIX.length()), line.substring(0, space));
+            }
+        }
+        return res;
+    }
+
+    private void writePacked(LockFile lock, TreeMap<String, String> refs) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : refs.entrySet()) {
+            sb.append(e.getValue()).append(' ').append(refNameOf(e.getKey())).append('\n');
+        }
+        lock.write(sb.toString());
+        packed = refs;
+    }
+
+    /**
+     * Remove from packed-refs the branch NAME, or the branches starting
+     * with PREFIX, whichever is not null.
+     */
+    private void removePacked(String name, String prefix) {
+        if (!packedRefs.isFile()) {
+            return;
+        }
+        try (LockFile lock = LockFile.acquire(packedRefs)) {
+            TreeMap<String, String> refs = readPacked();
+            SortedMap<String, String> removed = name != null
+                ? refs.subMap(name, true, name, true) : refs.subMap(prefix, prefix + Character.MAX_VALUE);
+            if (!removed.isEmpty()) {
+                removed.clear();
+                writePacked(lock, refs);
+            }
+        }
+    }
+
+    private static void deleteRec(File file) {
+        File[] files = file.listFiles();
+        for (File f : files == null ? new File[0] : files) {
+            deleteRec(f);
+        }
+        file.delete();
+    }
+}
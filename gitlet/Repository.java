@@ -1,21 +1,27 @@
 package gitlet;
 
 import static gitlet.Utils.*;
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 /** Represents a gitlet repository.
  *
  *  @author krmmzs
  */
-public class Repository {
+public class Repository implements AutoCloseable {
 
     /**
      * The current working directory(work tree).
@@ -46,10 +52,34 @@ public class Repository {
      * The Objects directory, stores committed blobs.
      */
     private File BLOBS_DIR;
+    /**
+     * The trees directory, stores the directories of snapshots.
+     */
+    private File TREES_DIR;
     /**
      * The commits directory.
      */
     private File COMMIT_DIR;
+    /**
+     * The packs directory, stores packed commits and blobs.
+     */
+    private File PACK_DIR;
+    /**
+     * The sorted index of all commit ids, for abbreviated ids.
+     */
+    private File COMMIT_INDEX;
+    /**
+     * The commit-graph cache, parents of every commit.
+     */
+    private File COMMIT_GRAPH;
+    /**
+     * The index of the tokens of the commit messages, for find.
+     */
+    private File MESSAGE_INDEX;
+    /**
+     * The content ids of the blob ids of the first versions.
+     */
+    private File LEGACY_IDS;
 
     // The branches directory(Mimicking .git).
 
@@ -72,10 +102,86 @@ public class Repository {
     private File HEAD;
     // Note that in Gitlet, there is no way to be in a detached head state
 
+    /**
+     * The branches, loose or packed, and their reflogs.
+     */
+    private Refs refs;
+
+    /**
+     * NAME@{N}: the commit branch NAME was at N moves ago.
+     */
+    private static final Pattern REFLOG_ENTRY = Pattern.compile("(.+)@\\{(\\d{1,9})\\}");
+
+    /**
+     * How long gc keeps the objects nothing refers to, by default (ms).
+     */
+    private static final long GC_GRACE = 14L * 24 * 60 * 60 * 1000;
+
     private File CONFIG;
 
     private String DEFAULT_BRANCH;
 
+    /**
+     * The packs of this repository.
+     */
+    private PackDirectory packs;
+
+    /**
+     * Whether PACKS outlives this repository, and is left open by close.
+     */
+    private boolean sharedPacks;
+
+    /**
+     * Resolves abbreviated commit ids.
+     */
+    private IdIndex commitIndex;
+
+    /**
+     * Finds the commits whose message may contain a string.
+     */
+    private MessageIndex messageIndex;
+
+    /**
+     * Translates the blob ids of serialized commits and stages.
+     */
+    private LegacyIds legacyIds;
+
+    /**
+     * Ancestry of the commits, for history walks.
+     */
+    private CommitGraph commitGraph;
+
+    /**
+     * Finds the common ancestors of commits.
+     */
+    private MergeBase mergeBase;
+
+    /**
+     * Content-addressed store of committed blobs.
+     */
+    private ObjectStore blobStore;
+
+    /**
+     * Content-addressed store of blobs staged for addition.
+     */
+    private ObjectStore stagingStore;
+
+    /**
+     * The trees of the committed snapshots.
+     */
+    private TreeStore treeStore;
+
+    /**
+     * Commits, trees and small blobs recently read, shared by the stores.
+     */
+    private ObjectCache objectCache;
+
+    /**
+     * The objects written by the command, forced to disk before the stage
+     * or a branch refers to them.
+     */
+    private SyncBatch syncBatch;
+
     /**
      * Lazy load for the current branch name.
      */
@@ -88,6 +194,12 @@ public class Repository {
 
     private final Lazy<Stage> stage = lazy(() -> readStage());
 
+    /**
+     * Lock on the stage, held from before it is read until the command
+     * ends (see unlock), if the command changes it.
+     */
+    private LockFile stageLock;
+
     public Repository() {
         this.CWD = new File(System.getProperty("user.dir"));
         configDIRS();
@@ -98,19 +210,62 @@ public class Repository {
         configDIRS();
     }
 
+    /**
+     * A repository in the working directory CWD reading through CACHE
+     * and PACKS, which may be kept from a previous command (see Daemon).
+     * PACKS is refreshed, and left open by close.
+     */
+    Repository(String cwd, ObjectCache cache, PackDirectory packs) {
+        this(cwd);
+        packs.refresh();
+        this.packs = packs;
+        this.sharedPacks = true;
+        this.objectCache = cache;
+        this.blobStore = new ObjectStore(BLOBS_DIR, packs, objectCache, syncBatch);
+        this.treeStore = new TreeStore(new ObjectStore(TREES_DIR, packs, null, syncBatch),
+            objectCache);
+    }
+
+    /**
+     * @return the packs of the repository in the working directory CWD,
+     *         to be kept from one command to the next (see Daemon).
+     */
+    static PackDirectory packsOf(String cwd) {
+        return new PackDirectory(join(cwd, ".gitlet", "Objects", "pack"));
+    }
+
     private void configDIRS() {
         this.GITLET_DIR = join(CWD, ".gitlet");
         this.STAGE = join(GITLET_DIR, "stage");
         this.OBJECTS_DIR = join(GITLET_DIR, "Objects");
         this.STAGING_DIR = join(OBJECTS_DIR, "staging");
         this.BLOBS_DIR = join(OBJECTS_DIR, "blobs");
+        this.TREES_DIR = join(OBJECTS_DIR, "trees");
         this.COMMIT_DIR = join(OBJECTS_DIR, "commits");
+        this.PACK_DIR = join(OBJECTS_DIR, "pack");
+        this.COMMIT_INDEX = join(OBJECTS_DIR, "commit-ids");
+        this.COMMIT_GRAPH = join(OBJECTS_DIR, "commit-graph");
+        this.MESSAGE_INDEX = join(OBJECTS_DIR, "message-index");
+        this.LEGACY_IDS = join(OBJECTS_DIR, "legacy-ids");
         this.REFS_DIR = join(GITLET_DIR, "refs");
         this.HEADS_DIR = join(REFS_DIR, "heads");
         this.REMOTES_DIR = join(REFS_DIR, "remotes");
         this.HEAD = join(GITLET_DIR, "HEAD");
         this.CONFIG = join(GITLET_DIR, "config");
         this.DEFAULT_BRANCH = "master";
+        this.refs = new Refs(GITLET_DIR);
+        this.packs = new PackDirectory(PACK_DIR);
+        this.commitIndex = new IdIndex(COMMIT_INDEX);
+        this.messageIndex = new MessageIndex(MESSAGE_INDEX);
+        this.legacyIds = new LegacyIds(LEGACY_IDS);
+        this.commitGraph = new CommitGraph(COMMIT_GRAPH, this::getCommitFromId);
+        this.mergeBase = new MergeBase(commitGraph);
+        this.objectCache = new ObjectCache(ObjectCache.DEFAULT_CAPACITY);
+        this.syncBatch = new SyncBatch();
+        this.blobStore = new ObjectStore(BLOBS_DIR, packs, objectCache, syncBatch);
+        this.stagingStore = new ObjectStore(STAGING_DIR, null, null, syncBatch);
+        this.treeStore = new TreeStore(new ObjectStore(TREES_DIR, packs, null, syncBatch),
+            objectCache);
     }
 
     public void init() {
@@ -119,6 +274,8 @@ public class Repository {
         }
         // create directory (.gitlet)
         createInitDir();
+        // empty, so that every commit is indexed as it is written.
+        messageIndex.rebuild(Map.of());
         // inital commit
         Commit initialCommit = new Commit();
         // initialCommit.saveCommit();
@@ -135,7 +292,9 @@ public class Repository {
         OBJECTS_DIR.mkdir();
         STAGING_DIR.mkdir();
         BLOBS_DIR.mkdir();
+        TREES_DIR.mkdir();
         COMMIT_DIR.mkdir();
+        PACK_DIR.mkdir();
         REFS_DIR.mkdir();
         HEADS_DIR.mkdir();
         REMOTES_DIR.mkdir();
@@ -161,15 +320,105 @@ public class Repository {
      * @param fileName added file name.
      */
     public void add(String fileName) {
-        // get file from CWD
-        File file = join(CWD, fileName);
-        if (!file.exists()) {
+        add(List.of(fileName));
+    }
+
+    /**
+     * <pre>
+     * Stage every file of PATHS at once, see add(String). A path naming
+     * the working directory (such as ".") stands for all of its files.
+     * Nothing is staged if one of the paths does not exist, and the stage
+     * is written once at the end.
+     * <pre>
+     * @param paths file names or the working directory.
+     */
+    public void add(List<String> paths) {
+        lockStage();
+        Set<String> fileNames = new LinkedHashSet<>();
+        for (String path : paths) {
+            fileNames.addAll(expandPath(path));
+        }
+        Map<String, String> cwdBlobIds = getWorkingBlobIds(new ArrayList<>(fileNames));
+        for (Map.Entry<String, String> entry : cwdBlobIds.entrySet()) {
+            stageFile(entry.getKey(), entry.getValue());
+        }
+        writeStage(stage.get());
+    }
+
+    /**
+     * @param path an argument of add
+     * @return the names of the working files PATH stands for: the file
+     *         itself, or all the files below a directory.
+     */
+    private List<String> expandPath(String path) {
+        String fileName = toWorkingPath(path);
+        if (fileName == null || !join(CWD, fileName).exists()) {
             exit("File does not exist.");
         }
+        if (join(CWD, fileName).isDirectory()) {
+            return listWorkingFiles(fileName);
+        }
+        return List.of(fileName);
+    }
+
+    /**
+     * @param path a path given on the command line
+     * @return PATH relative to the working directory, with "/" between
+     *         names ("" for the working directory itself), or null if
+     *         it is outside the working directory or in .gitlet.
+     */
+    private String toWorkingPath(String path) {
+        Path cwd = CWD.toPath().toAbsolutePath().normalize();
+        Path target = cwd.resolve(path).normalize();
+        if (!target.startsWith(cwd) || target.startsWith(GITLET_DIR.toPath().toAbsolutePath())) {
+            return null;
+        }
+        List<String> names = new ArrayList<>();
+        for (Path name : cwd.relativize(target)) {
+            names.add(name.toString());
+        }
+        return String.join("/", names);
+    }
+
+    /**
+     * @return the sorted paths of all the working files.
+     */
+    private List<String> listWorkingFiles() {
+        return listWorkingFiles("");
+    }
 
-        Blob cwdBlob = new Blob(fileName, CWD); // using file name to instance this blob.
-        String cwdBlobId = cwdBlob.getId();
+    /**
+     * @param dirName a working directory, relative to CWD ("" for CWD)
+     * @return the sorted paths of the files below DIRNAME, relative to CWD.
+     */
+    private List<String> listWorkingFiles(String dirName) {
+        List<String> res = new ArrayList<>();
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(dirName);
+        while (!stack.isEmpty()) {
+            String dir = stack.pop();
+            File[] files = join(CWD, dir).listFiles(gitletFliter);
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                String path = dir.isEmpty() ? file.getName() : dir + "/" + file.getName();
+                if (file.isDirectory()) {
+                    stack.push(path);
+                } else if (file.isFile()) {
+                    res.add(path);
+                }
+            }
+        }
+        Collections.sort(res);
+        return res;
+    }
 
+    /**
+     * Stage (or unstage) FILENAME whose working version is CWDBLOBID,
+     * without writing the stage.
+     */
+    private void stageFile(String fileName, String cwdBlobId) {
         // gettheHeadCommit
         // using file name to find file in current Commit.
         String headBlobId = head.get().getBlobs().getOrDefault(fileName, "");
@@ -180,16 +429,24 @@ public class Repository {
         // the version in the current commit do not stage it be added
         // and remove it from the staging area if it is already there.
         if (cwdBlobId.equals(headBlobId)) {
-            // delete the file from staging
-            join(STAGING_DIR, stageBlobId).delete();
-
             stage.get().getAdded().remove(fileName);
             stage.get().getRemoved().remove(fileName);
-            writeStage(stage.get());
+            // delete the staged blob, unless another file still uses it.
+            if (!stageBlobId.equals("")
+                && !stage.get().getAdded().containsValue(stageBlobId)) {
+                stagingStore.deleteLoose(stageBlobId);
+            }
         } else if (!cwdBlobId.equals(stageBlobId)) {
-            // update new version
-            writeBlobToStaging(cwdBlobId, cwdBlob);
-            updateStageAddedBlob(fileName, cwdBlobId);
+            // update new version, unless the same content is already stored.
+            if (!blobStore.contains(cwdBlobId) && !stagingStore.contains(cwdBlobId)) {
+                writeBlobToStaging(cwdBlobId, join(CWD, fileName));
+            }
+            stage.get().add(fileName, cwdBlobId);
+            // the version it replaces, unless another file still uses it.
+            if (!stageBlobId.equals("")
+                && !stage.get().getAdded().containsValue(stageBlobId)) {
+                stagingStore.deleteLoose(stageBlobId);
+            }
         }
     }
 
@@ -197,10 +454,12 @@ public class Repository {
         if (msg.equals("")) {
             exit("Please enter a commit message.");
         }
+        lockStage();
         commitWith(msg, List.of(head.get()));
     }
 
     public void rm(String fileName) {
+        lockStage();
         String headBlobId = head.get().getBlobs().getOrDefault(fileName, "");
         String stageBlobId = stage.get().getAdded().getOrDefault(fileName, "");
         if (headBlobId.equals("") && stageBlobId.equals("")) {
@@ -214,8 +473,7 @@ public class Repository {
             stageForRemoved(fileName);
         }
 
-        Blob cwdBlob = new Blob(fileName, CWD);
-        String cwdBlobId = cwdBlob.getId();
+        String cwdBlobId = getWorkingBlobId(fileName);
         File file = join(CWD, fileName);
         // If the file is tracked in the current
         // commit, stage it for removal(done in last condition, untracked means)
@@ -223,43 +481,128 @@ public class Repository {
         // if the user has not already done so
         if (cwdBlobId.equals(headBlobId)) {
             // remove the file from the working directory
-            restrictedDelete(file);
+            deleteWorkingFile(fileName);
         }
 
         writeStage(stage.get());
     }
 
     public void log() {
-        StringBuffer sb = logIteratorFromHead(head.get());
-        System.out.print(sb);
+        log(LogOptions.DEFAULT);
+    }
+
+    /**
+     * <pre>
+     * java gitlet.Main log [-n N] [--since DATE] [--until DATE] [--oneline]
+     * Prints the first-parent history of the head commit as it is walked,
+     * see LogOptions. The walk follows the commit graph and only the
+     * commits printed are read; it stops at the limit, or at the first
+     * commit older than --since.
+     * <pre>
+     * @param options
+     */
+    public void log(LogOptions options) {
+        Writer out = stdout();
+        try {
+            int printed = 0;
+            for (int i = commitGraph.indexOf(getHeadCommitId());
+                 i >= 0 && printed < options.getLimit(); i = commitGraph.firstParentOf(i)) {
+                long timestamp = commitGraph.timestampOf(i);
+                if (options.isBefore(timestamp)) {
+                    break;
+                }
+                if (options.accepts(timestamp)) {
+                    getCommitFromId(commitGraph.idAt(i)).writeLog(out, options.isOneline());
+                    printed += 1;
+                }
+            }
+            out.flush();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
     }
 
     public void globalLog() {
-        StringBuffer sb = logAllCommit();
-        System.out.println(sb);
+        globalLog(LogOptions.DEFAULT);
+    }
+
+    /**
+     * <pre>
+     * java gitlet.Main global-log [-n N] [--since DATE] [--until DATE] [--oneline]
+     * Prints every commit, in the order of their ids, as they are read.
+     * The commits are read on several threads (see CommitScan).
+     * <pre>
+     * @param options see LogOptions
+     */
+    public void globalLog(LogOptions options) {
+        Writer out = stdout();
+        int[] printed = {0};
+        if (options.getLimit() > 0) {
+            CommitScan.scan(getAllCommitIds(), commitId -> {
+                Commit commit = getCommitFromId(commitId);
+                return options.accepts(commit.getTimestamp().getTime()) ? commit : null;
+            }, commit -> {
+                try {
+                    commit.writeLog(out, options.isOneline());
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+                printed[0] += 1;
+                return printed[0] < options.getLimit();
+            });
+        }
+        if (!options.isOneline()) {
+            write(out, "\n");
+        }
+        flush(out);
     }
 
+    /**
+     * Prints the ids of the commits whose message contains MSG, in the
+     * order of their ids. Only the commits the message index finds may
+     * match are read, all of them if MSG has no letter or digit; they
+     * are read on several threads (see CommitScan).
+     * @param msg
+     */
     public void find(String msg) {
-        StringBuffer sb = getCommitAsStringByMsg(msg);
-        if (sb.length() == 0) {
+        if (!messageIndex.exists()) {
+            // repositories created before the index existed.
+            rebuildMessageIndex();
+        }
+        TreeSet<String> candidates = messageIndex.candidates(msg);
+        List<String> commitIds = candidates == null ? getAllCommitIds() : new ArrayList<>(candidates);
+        Writer out = stdout();
+        boolean[] found = {false};
+        CommitScan.scan(commitIds, commitId -> {
+            Commit commit = getCommitFromId(commitId);
+            return commit != null && commit.getMessage().contains(msg) ? commitId : null;
+        }, commitId -> {
+            found[0] = true;
+            write(out, commitId + "\n");
+            return true;
+        });
+        if (!found[0]) {
             exit("Found no commit with that message.");
         }
-        System.out.println(sb);
+        write(out, "\n");
+        flush(out);
     }
 
-    private StringBuffer getCommitAsStringByMsg(String msg) {
-        StringBuffer sb = new StringBuffer();
-        List<String> commitsFileNames = plainFilenamesIn(COMMIT_DIR);
-        for (String fileName: commitsFileNames) {
-            Commit commit = getCommitFromId(fileName);
-            if (commit.getMessage().contains(msg)) {
-                sb.append(commit.getId() + "\n");
-            }
-        }
-        return sb;
+    /**
+     * Index the messages of all the commits anew.
+     */
+    private void rebuildMessageIndex() {
+        Map<String, String> messages = new LinkedHashMap<>();
+        CommitScan.scan(getAllCommitIds(), this::getCommitFromId, commit -> {
+            messages.put(commit.getId(), commit.getMessage());
+            return true;
+        });
+        messageIndex.rebuild(messages);
     }
 
     public void status() {
+        // only worth waiting for if the stage is to be written.
+        boolean locked = tryLockStage();
         StringBuffer sb = new StringBuffer();
 
         sb.append("=== Branches ===\n");
@@ -283,6 +626,10 @@ public class Repository {
         sb.append("\n");
 
         System.out.println(sb);
+        // remember what was hashed, so the next status need not.
+        if (locked && stage.get().isCacheChanged()) {
+            writeStage(stage.get());
+        }
     }
 
 
@@ -296,10 +643,9 @@ public class Repository {
      * @param branchName
      */
     public void checkoutBranch(String branchName) {
-        File branchFile = getBranchFile(branchName);
         // There is no corresponding branch name
         // or no corresponding file.
-        if (!branchFile.exists()) {
+        if (refs.get(branchName) == null) {
             exit("No such branch exists.");
         }
 
@@ -310,6 +656,7 @@ public class Repository {
 
         // If a working file is untracked in the current
         // branch and would be overwritten by the checkout
+        lockStage();
         Commit otherCommit = getCommitFromBranchName(branchName);
         validUntrackedFile(otherCommit.getBlobs());
 
@@ -318,7 +665,11 @@ public class Repository {
         replaceWorkingPlaceWithCommit(otherCommit);
 
         // the given branch will now be considered the current branch (HEAD).
+        String from = headBranchName.get();
+        String fromId = head.get().getId();
         writeHEAD(branchName);
+        refs.log(Refs.HEAD, fromId, otherCommit.getId(),
+            "checkout: moving from " + from + " to " + branchName);
     }
 
     /**
@@ -336,11 +687,10 @@ public class Repository {
      */
     public void checkoutFileFromCommitId(String commitId, String fileName) {
         commitId = getCompleteCommitId(commitId);
-        File commitFile = join(COMMIT_DIR, commitId);
-        if (!commitFile.exists()) {
+        if (commitId == null || !hasCommit(commitId)) {
             exit("No commit with that id exists.");
         }
-        Commit commit = readObject(commitFile, Commit.class);
+        Commit commit = getCommitFromId(commitId);
         checkoutFileFromCommit(fileName, commit);
     }
 
@@ -349,14 +699,15 @@ public class Repository {
      * @param branchName
      */
     public void branch(String  branchName) {
-        File branchFile = join(HEADS_DIR, branchName);
-        if (branchFile.exists()) {
-            exit("A branch with that name already exists.");
+        if (LockFile.isLockFile(branchName) || branchName.contains("/")
+            || branchName.contains("@{") || branchName.equals(Refs.HEAD)) {
+            exit("'%s' is not a valid branch name.", branchName);
         }
-
         // points it at the current head commit.
-        String commitId = getHeadCommitId();
-        writeBranch(branchFile, commitId);
+        if (!refs.create(branchName, getHeadCommitId(),
+            "branch: Created from " + headBranchName.get())) {
+            exit("A branch with that name already exists.");
+        }
     }
 
     /**
@@ -364,8 +715,7 @@ public class Repository {
      * @param branchName
      */
     public void rmBranch(String branchName) {
-        File branchFile = join(HEADS_DIR, branchName);
-        if (!branchFile.exists()) {
+        if (branchName.contains("/") || refs.get(branchName) == null) {
             exit("A branch with that name does not exist.");
         }
 
@@ -373,7 +723,7 @@ public class Repository {
             exit("Cannot remove the current branch.");
         }
 
-        branchFile.delete();
+        refs.delete(branchName);
     }
 
     /**
@@ -385,11 +735,21 @@ public class Repository {
      * <pre>
      */
     public void reset(String commitId) {
-        File file = join(COMMIT_DIR, commitId);
-        if (!file.exists()) {
+        lockStage();
+        String name = commitId;
+        commitId = getCompleteCommitId(commitId);
+        if (commitId == null || !hasCommit(commitId)) {
             exit("No commit with that id exists.");
         }
+        resetTo(commitId, "reset: moving to " + name);
+    }
 
+    /**
+     * Check out commit COMMITID, a complete id, and move the current
+     * branch to it, logging MESSAGE.
+     */
+    private void resetTo(String commitId, String message) {
+        lockStage();
         Commit commit = getCommitFromId(commitId);
 
         // Failure case: If no commit with the given id exists
@@ -399,7 +759,7 @@ public class Repository {
         clearStage(readStage());
 
         // Also moves the current branch’s head to that commit node.
-        writeBranch(join(HEADS_DIR, headBranchName.get()), commitId);
+        updateRef(headBranchName.get(), head.get().getId(), commitId, message);
     }
 
     /**
@@ -411,20 +771,28 @@ public class Repository {
      * 5. Not in split nor HEAD but in other -> other
      * 6. Unmodified in HEAD but not present in other -> remove
      * 7. Unmodified in other but not present in HEAD -> remain remove
+     *
+     * The other side may also be given as an (abbreviated) commit id.
      * <pre>
      *
      * @param branchName
      */
     public void merge(String otherBranchName) {
+        lockStage();
         // If there are staged additions or removals present,
         if (!stage.get().isEmpty()) {
             exit("You have uncommitted changes.");
         }
 
-        // check the headBranchName and otherBranchFile
-        File otherBranchFile = getBranchFile(otherBranchName);
-        if (!otherBranchFile.exists()) {
-            exit("A branch with that name does not exist.");
+        // check the headBranchName and otherBranchName
+        String otherBranchId = refs.get(otherBranchName);
+        String otherCommitId = null;
+        if (otherBranchId == null) {
+            // not a branch, may be an (abbreviated) commit id.
+            otherCommitId = getCompleteCommitId(otherBranchName);
+            if (otherCommitId == null || !hasCommit(otherCommitId)) {
+                exit("A branch with that name does not exist.");
+            }
         }
 
         if (headBranchName.get().equals(otherBranchName)) {
@@ -435,7 +803,7 @@ public class Repository {
 
         // get head commit and other commit
         // Commit head = getCommitFromBranchName(headBranchName);
-        Commit other = getCommitFromBranchFile(otherBranchFile);
+        Commit other = getCommitFromId(otherCommitId == null ? otherBranchId : otherCommitId);
         // get lca
         Commit lca = getLca(head.get(), other);
 
@@ -448,7 +816,11 @@ public class Repository {
         // If the split point is the current branch,
         // then the effect is to check out the given branch
         if (lca.getId().equals(head.get().getId())) {
-            checkoutBranch(otherBranchName);
+            if (otherCommitId == null) {
+                checkoutBranch(otherBranchName);
+            } else {
+                resetTo(otherCommitId, "merge " + otherBranchName + ": Fast-forward");
+            }
             System.out.println("Current branch fast-forwarded.");
             return;
         }
@@ -460,6 +832,129 @@ public class Repository {
         commitWith(msg, parents);
     }
 
+    /**
+     * <pre>
+     * java gitlet.Main merge-base [--all] [commit] [commit]
+     * Prints the best common ancestor of the two commits, or all of them
+     * with --all. Each commit is a branch name or an (abbreviated) commit id.
+     * <pre>
+     * @param all print every best common ancestor
+     * @param first
+     * @param second
+     */
+    public void mergeBase(boolean all, String first, String second) {
+        String firstId = resolveCommitId(first);
+        String secondId = resolveCommitId(second);
+        if (firstId == null || secondId == null) {
+            exit("No commit with that id exists.");
+        }
+        List<Integer> bases = mergeBase.all(commitGraph.indexOf(firstId),
+            commitGraph.indexOf(secondId));
+        StringBuffer sb = new StringBuffer();
+        for (int base : all ? bases : bases.subList(0, Math.min(1, bases.size()))) {
+            sb.append(commitGraph.idAt(base) + "\n");
+        }
+        System.out.print(sb);
+    }
+
+    /**
+     * <pre>
+     * java gitlet.Main diff [--cached] [commit [commit]]
+     * Prints, as unified diffs, the changes
+     *     from the stage to the working files, with no commit;
+     *     from the commit to the working files, with one;
+     *     from the first commit to the second, with two.
+     * With --cached, the stage takes the place of the working files and
+     * the head commit is the default commit.
+     * Each commit is a branch name or an (abbreviated) commit id.
+     * <pre>
+     * @param cached diff the stage instead of the working files
+     * @param commits none, one or two commits
+     */
+    public void diff(boolean cached, List<String> commits) {
+        boolean locked = tryLockStage();
+        List<String> ids = new ArrayList<>();
+        for (String name : commits) {
+            String commitId = resolveCommitId(name);
+            if (commitId == null) {
+                exit("No commit with that id exists.");
+            }
+            ids.add(commitId);
+        }
+
+        // path -> blob id on each side, only the changed paths.
+        Map<String, String[]> changes = new TreeMap<>();
+        Set<String> working = new HashSet<>();
+        if (ids.size() == 2) {
+            new TreeDiff(treeStore).twoWay(treeIdOf(getCommitFromId(ids.get(0))),
+                treeIdOf(getCommitFromId(ids.get(1))),
+                (fileName, from, unused, to) -> changes.put(fileName, new String[] {from, to}));
+        } else {
+            Map<String, String> from;
+            Map<String, String> to;
+            if (cached) {
+                from = ids.isEmpty() ? head.get().getBlobs() : getCommitFromId(ids.get(0)).getBlobs();
+                to = getStagedBlobs();
+            } else {
+                from = ids.isEmpty() ? getStagedBlobs() : getCommitFromId(ids.get(0)).getBlobs();
+                to = getWorkingBlobs(from.keySet());
+                working.addAll(to.keySet());
+            }
+            Set<String> fileNames = new TreeSet<>(from.keySet());
+            fileNames.addAll(to.keySet());
+            for (String fileName : fileNames) {
+                if (!Objects.equals(from.get(fileName), to.get(fileName))) {
+                    changes.put(fileName, new String[] {from.get(fileName), to.get(fileName)});
+                }
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String[]> entry : changes.entrySet()) {
+            String fileName = entry.getKey();
+            String from = entry.getValue()[0];
+            String to = entry.getValue()[1];
+            List<String> fromLines = LineDiff.lines(getContentAsStringFromBlobId(from));
+            List<String> toLines = LineDiff.lines(working.contains(fileName)
+                ? readContentsAsString(join(CWD, fileName)) : getContentAsStringFromBlobId(to));
+            sb.append("diff --git a/" + fileName + " b/" + fileName + "\n");
+            sb.append("--- " + (from == null ? "/dev/null" : "a/" + fileName) + "\n");
+            sb.append("+++ " + (to == null ? "/dev/null" : "b/" + fileName) + "\n");
+            sb.append(LineDiff.unified(fromLines, toLines, LineDiff.diff(fromLines, toLines)));
+        }
+        System.out.print(sb);
+        if (locked && stage.get().isCacheChanged()) {
+            writeStage(stage.get());
+        }
+    }
+
+    /**
+     * @return fileName -> blob id of the files of the head commit as
+     *         staged: with the additions, without the removals.
+     */
+    private Map<String, String> getStagedBlobs() {
+        Map<String, String> res = new HashMap<>(head.get().getBlobs());
+        res.putAll(stage.get().getAdded());
+        res.keySet().removeAll(stage.get().getRemoved());
+        return res;
+    }
+
+    /**
+     * @return fileName -> blob id of the working files tracked by the
+     *         stage or named in FILENAMES.
+     */
+    private Map<String, String> getWorkingBlobs(Set<String> fileNames) {
+        Set<String> names = new TreeSet<>(fileNames);
+        names.addAll(getStagedBlobs().keySet());
+        List<String> present = new ArrayList<>();
+        for (String fileName : names) {
+            if (join(CWD, fileName).isFile()) {
+                present.add(fileName);
+            }
+        }
+        return getWorkingBlobIds(present);
+    }
+
     /**
      * <pre>
      * java gitlet.Main add-remote [remote name] [name of remote directory]/.gitlet
@@ -501,6 +996,7 @@ public class Repository {
         }
 
         delFileRec(remoteFile);
+        refs.deleteRemote(remoteName);
 
         rmConfig(remoteName);
     }
@@ -514,29 +1010,34 @@ public class Repository {
      */
     public void push(String remoteName, String remoteBranchName) {
         File remotePathFile = getRemotePath(remoteName);
-        Repository remote = new Repository(remotePathFile.getParent());
+        try (Repository remote = new Repository(remotePathFile.getParent())) {
+            pushTo(remote, remoteBranchName);
+        }
+    }
 
+    private void pushTo(Repository remote, String remoteBranchName) {
         Commit remoteHead = remote.getHead();
-        List<String> historyId = getHistoryId(head.get());
         // If the remote branch’s head is not in the
         // history of the current local head.
-        if (!historyId.contains(remoteHead.getId())) {
+        int remoteHeadIndex = commitGraph.indexOf(remoteHead.getId());
+        int headIndex = commitGraph.indexOf(head.get().getId());
+        if (remoteHeadIndex < 0 || !mergeBase.isAncestor(remoteHeadIndex, headIndex)) {
             exit("Please pull down remote changes before pushing.");
         }
 
         // If the Gitlet system on the remote machine exists but does not
         // have the input branch, then simply add the branch to the remote Gitlet.
-        File remoteBranch = join(remote.HEADS_DIR, remoteBranchName);
-        if (!remoteBranch.exists()) {
+        if (remote.refs.get(remoteBranchName) == null) {
             remote.branch(remoteBranchName);
         }
 
-        // append the future commits to the remote branch.
-        pushCommit(remote, remoteHead, historyId);
+        // append the future commits to the remote branch: those the
+        // branches of the remote do not reach.
+        remote.copyCommitsFrom(this, head.get().getId(), remote.refs.all().values());
 
         // Then, the remote should reset to the front of
         // the appended commits.
-        remote.reset(head.get().getId());
+        remote.resetTo(head.get().getId(), "push");
     }
 
     /**
@@ -547,23 +1048,23 @@ public class Repository {
      */
     public void fetch(String remoteName, String remoteBranchName) {
         File remotePathFile = getRemotePath(remoteName);
-        Repository remote = new Repository(remotePathFile.getParent());
+        String remoteBranchId;
+        try (Repository remote = new Repository(remotePathFile.getParent())) {
+            remoteBranchId = remoteBranchName.contains("/")
+                ? null : remote.refs.get(remoteBranchName);
+            if (remoteBranchId == null) {
+                exit("That remote does not have that branch.");
+            }
 
-        File remoteBranchFile = remote.getBranchFile(remoteBranchName);
-        if (remoteBranchFile == null || !remoteBranchFile.exists()) {
-            exit("That remote does not have that branch.");
+            // This branch is created in the local repository
+            // if it did not previously exist.
+            // copies the commits and blobs of the given branch in the
+            // remote repository which no local branch reaches.
+            copyCommitsFrom(remote, remoteBranchId, refs.all().values());
         }
 
-        Commit remoteBranchCommit = remote.getCommitFromBranchFile(remoteBranchFile);
-        // This branch is created in the local repository
-        // if it did not previously exist.
-        File branch = join(REMOTES_DIR, remoteName, remoteBranchName);
-        writeContents(branch, remoteBranchCommit.getId());
-
-        // copies all commits and blobs from the given
-        // branch in the remote repository.
-        List<String> history = remote.getHistoryId(remoteBranchCommit);
-        cpCommitAndBlobsFromRemote(remote, history);
+        // the branch last, once all it refers to is stored.
+        updateRef(remoteName + "/" + remoteBranchName, null, remoteBranchId, "fetch");
     }
 
     /**
@@ -580,95 +1081,592 @@ public class Repository {
     }
 
     /**
-     * copy commits and blobs from remote.
-     * @param remote
-     * @param history
+     * <pre>
+     * java gitlet.Main repack
+     * Consolidates the loose commits and blobs, and the existing packs,
+     * into a single pack. Successive versions of a file are stored as
+     * deltas against each other when that pays off. The branch tips, and
+     * commits at regular intervals, get reachability bitmaps (see
+     * PackBitmaps). The branches are moved to packed-refs (see Refs).
+     * The stage stays locked throughout, so that no command writes loose
+     * objects meanwhile, and only the loose objects in the new pack are
+     * deleted.
+     * <pre>
      */
-    private void cpCommitAndBlobsFromRemote(Repository remote, List<String> history) {
-        for (String commitId : history) {
-            Commit commit = remote.getCommitFromId(commitId);
-            File commitFile = join(COMMIT_DIR, commit.getId());
-            if (commitFile.exists()) {
-                continue;
-            }
-            writeObject(commitFile, commit);
-
-            for (Map.Entry<String, String> entry : commit.getBlobs().entrySet()) {
-                String blobId = entry.getValue();
-                Blob blob = remote.getBlobFromId(blobId);
-
-                File blobFile = join(BLOBS_DIR, blobId);
-                writeObject(blobFile, blob);
-            }
-        }
+    public void repack() {
+        repack(id -> true);
     }
 
-
     /**
-     * Append the future commits to the remote branch.
-     * @param remoteHead
-     * @param history
+     * Repack the loose objects, and the packed objects KEEP accepts.
+     * @param keep whether to keep a packed object, given its id; it is
+     *             to accept all that the commits it accepts refer to
      */
-    private void pushCommit(Repository remote, Commit remoteHead, List<String> history) {
-        for (String commitId : history) {
-            // until the end of the given branch at the given remote.
-            if (commitId.equals(remoteHead.getId())) {
-                break;
+    private void repack(Predicate<String> keep) {
+        // no command writes loose objects while they are packed and deleted.
+        lockStage();
+        List<Commit> commits = new ArrayList<>();
+        for (String commitId : getAllCommitIds()) {
+            if (getCommitFile(commitId).isFile() || keep.test(commitId)) {
+                commits.add(getCommitFromId(commitId));
             }
-
-            Commit commit = getCommitFromId(commitId);
-            cpCommitToRemote(remote, commit, commitId);
-            cpCommitBlobsToRemote(remote, commit, commitId);
         }
-    }
+        commits.sort(Comparator.comparing(Commit::getTimestamp));
 
-    /**
-     * Cp commit persisting contents to remote.
-     * @param remote
-     * @param commit
-     * @param commitId
-     */
-    private void cpCommitToRemote(Repository remote, Commit commit, String commitId) {
-        File remoteCommitFile = join(remote.COMMIT_DIR, commitId);
-        writeObject(remoteCommitFile, commit);
-    }
+        PackFile.Writer writer = packs.newWriter();
+        for (Commit commit : commits) {
+            // re-encoded, which also upgrades older commits to trees.
+            treeIdOf(commit);
+            writer.add(commit.getId(), PackFile.COMMIT, commit.encode());
+        }
+        Set<String> seenTrees = new HashSet<>();
+        for (Commit commit : commits) {
+            treeStore.walk(commit.getTreeId(), seenTrees,
+                tree -> writer.add(tree.getId(), PackFile.TREE, tree.encode()));
+        }
+        // trees no commit refers to.
+        for (String treeId : treeStore.getStore().looseIds()) {
+            writer.add(treeId, PackFile.TREE, treeStore.read(treeId).encode());
+        }
+        for (String treeId : packs.ids(PackFile.TREE)) {
+            if (keep.test(treeId)) {
+                writer.add(treeId, PackFile.TREE, treeStore.read(treeId).encode());
+            }
+        }
 
-    /**
-     * Cp commit's blobs's persisting contents to remote.
-     * @param remote
-     * @param commit
-     * @param commitId
-     */
-    private void cpCommitBlobsToRemote(Repository remote, Commit commit, String commitId) {
-        if (!commit.getBlobs().isEmpty()) {
-            for (Map.Entry<String, String> entry : commit.getBlobs().entrySet()) {
+        // file name -> its previous version, the delta base candidate.
+        Map<String, String> lastVersion = new HashMap<>();
+        Map<String, Integer> depth = new HashMap<>();
+        for (Commit commit : commits) {
+            for (Map.Entry<String, String> entry : new TreeMap<>(commit.getBlobs()).entrySet()) {
+                String fileName = entry.getKey();
                 String blobId = entry.getValue();
-                Blob blob = getBlobFromId(blobId);
+                packBlob(writer, blobId, lastVersion.get(fileName), depth);
+                lastVersion.put(fileName, blobId);
+            }
+        }
+        // blobs no commit refers to.
+        for (String blobId : blobStore.looseIds()) {
+            packBlob(writer, blobId, null, depth);
+        }
+        for (String blobId : packs.ids(PackFile.BLOB)) {
+            if (keep.test(blobId)) {
+                packBlob(writer, blobId, null, depth);
+            }
+        }
 
-                File remoteBlob = join(remote.BLOBS_DIR, blobId);
-                writeObject(remoteBlob, blob);
+        PackFile pack = writer.finish();
+        packs.replaceAllWith(pack);
+        new ObjectWalk(commitGraph, this::getCommitFromId, treeStore, PackBitmaps.create(pack))
+            .writeBitmaps(refs.all().values());
+        // only the objects packed, whatever else the directories hold.
+        for (String commitId : ObjectStore.looseIdsIn(COMMIT_DIR)) {
+            if (pack.indexOf(commitId) >= 0) {
+                deleteLooseCommit(commitId);
             }
         }
+        for (String blobId : blobStore.looseIds()) {
+            if (pack.indexOf(blobId) >= 0) {
+                blobStore.deleteLoose(blobId);
+            }
+        }
+        for (String treeId : treeStore.getStore().looseIds()) {
+            if (pack.indexOf(treeId) >= 0) {
+                treeStore.getStore().deleteLoose(treeId);
+            }
+        }
+        refs.pack();
     }
 
-
     /**
-     * Traverse matching remote name, and ignore(skip) successful matched value.
-     * @param remoteName
+     * <pre>
+     * java gitlet.Main gc [--prune=DATE]
+     * Deletes the objects nothing refers to any more: the commits no
+     * branch, reflog entry or newer object reaches (left by reset and
+     * rm-branch), the trees and blobs only they refer to, and the blobs
+     * unstaged from the staging area. The reflog entries older than DATE
+     * are dropped first; the others keep their commits.
+     *
+     * Objects written since DATE, and all they refer to, are kept: they
+     * may be those of a command yet to point a branch at them. DATE is
+     * two weeks ago by default, "now" keeps no object for its age. The
+     * pack is written anew without its unreachable objects once it is
+     * older than DATE. The commands writing objects hold the lock of the
+     * stage, as gc does, so none of them runs meanwhile. The commit graph
+     * keeps the records of the deleted commits, which no kept commit
+     * reaches.
+     * <pre>
+     * @param prune DATE, "now", or null for the default
      */
-    private void rmConfig(String remoteName) {
-        String[] contents = readContentsAsString(CONFIG).split("\n");
-        String target = "[remote \"" + remoteName + "\"]";
-        StringBuffer sb = new StringBuffer();
-        for (int i = 0; i < contents.length;) {
-            if (contents[i].equals(target)) {
-                // skip content
+    public void gc(String prune) {
+        long cutoff = prune == null ? System.currentTimeMillis() - GC_GRACE
+            : prune.equals("now") ? Long.MAX_VALUE : LogOptions.parseDate(prune);
+        lockStage();
+        int commitCount = getAllCommitIds().size();
+
+        Set<String> roots = new LinkedHashSet<>(refs.all().values());
+        List<String> logged = new ArrayList<>(refs.all().keySet());
+        logged.add(Refs.HEAD);
+        for (String name : logged) {
+            refs.expireLog(name, cutoff);
+            for (Refs.LogEntry entry : refs.readLog(name)) {
+                roots.add(entry.oldId);
+                roots.add(entry.newId);
+            }
+        }
+        roots.remove(Refs.NO_ID);
+        for (String commitId : ObjectStore.looseIdsIn(COMMIT_DIR)) {
+            if (getCommitFile(commitId).lastModified() >= cutoff) {
+                roots.add(commitId);
+            }
+        }
+        ObjectWalk walk = objectWalk();
+        ObjectWalk.ObjectSet live = walk.reachable(roots);
+        ObjectStore trees = treeStore.getStore();
+        List<String> recentTrees = new ArrayList<>();
+        for (String treeId : trees.looseIds()) {
+            if (trees.lastModified(treeId) >= cutoff) {
+                recentTrees.add(treeId);
+            }
+        }
+        walk.addTrees(recentTrees, live);
+        Set<String> staged = new HashSet<>(stage.get().getAdded().values());
+        for (String blobId : staged) {
+            live.add(blobId, PackFile.BLOB);
+        }
+
+        // commits, then trees, then blobs: no kept object misses a part.
+        for (String commitId : ObjectStore.looseIdsIn(COMMIT_DIR)) {
+            if (!live.contains(commitId)) {
+                deleteLooseCommit(commitId);
+            }
+        }
+        for (String treeId : trees.looseIds()) {
+            if (!live.contains(treeId)) {
+                trees.deleteLoose(treeId);
+            }
+        }
+        for (String blobId : blobStore.looseIds()) {
+            if (!live.contains(blobId) && blobStore.lastModified(blobId) < cutoff) {
+                blobStore.deleteLoose(blobId);
+            }
+        }
+        // only the stage refers to the blobs of the staging area.
+        for (String blobId : stagingStore.looseIds()) {
+            if (!staged.contains(blobId)) {
+                stagingStore.deleteLoose(blobId);
+            }
+        }
+
+        boolean garbage = false;
+        boolean recentPack = false;
+        for (PackFile pack : packs.getPacks()) {
+            recentPack |= pack.getPackFile().lastModified() >= cutoff;
+            for (int i = 0; i < pack.size() && !garbage; i += 1) {
+                garbage = !live.contains(pack.idAt(i));
+            }
+        }
+        if (garbage && !recentPack) {
+            repack(live::contains);
+        }
+
+        if (getAllCommitIds().size() != commitCount) {
+            if (commitIndex.exists()) {
+                commitIndex.rebuild(getAllCommitIds());
+            }
+            if (messageIndex.exists()) {
+                rebuildMessageIndex();
+            }
+        }
+    }
+
+    /**
+     * Delete the loose file of commit COMMITID.
+     */
+    private void deleteLooseCommit(String commitId) {
+        File file = getCommitFile(commitId);
+        file.delete();
+        if (!file.getParentFile().equals(COMMIT_DIR)) {
+            // only succeeds once the fan-out directory is empty.
+            file.getParentFile().delete();
+        }
+    }
+
+    /**
+     * Append blob BLOBID to the pack, as a delta against BASEID if the
+     * base is packed already and the delta is small enough.
+     * @param writer
+     * @param blobId
+     * @param baseId previous version of the same file, or null
+     * @param depth blob id -> length of its delta chain
+     */
+    private void packBlob(PackFile.Writer writer, String blobId, String baseId,
+                          Map<String, Integer> depth) {
+        if (writer.contains(blobId)) {
+            return;
+        }
+        long size = blobStore.size(blobId);
+        int baseDepth = baseId == null ? 0 : depth.getOrDefault(baseId, 0);
+        if (baseId != null && writer.contains(baseId)
+            && baseDepth < PackFile.MAX_DELTA_DEPTH
+            && size <= PackFile.MAX_DELTA_SIZE
+            && blobStore.size(baseId) <= PackFile.MAX_DELTA_SIZE) {
+            byte[] content = blobStore.read(blobId);
+            byte[] delta = Delta.create(blobStore.read(baseId), content);
+            if (delta.length < content.length / 2) {
+                writer.addDelta(blobId, baseId, delta);
+                depth.put(blobId, baseDepth + 1);
+            } else {
+                writer.add(blobId, PackFile.BLOB, content);
+            }
+            return;
+        }
+        try (InputStream in = blobStore.open(blobId)) {
+            writer.add(blobId, PackFile.BLOB, in, size);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * <pre>
+     * java gitlet.Main reflog [branch name]
+     * Displays the moves of the given branch, or of the current commit
+     * (HEAD) by default, latest first. NAME@{N}, the commit NAME was at
+     * N moves ago, can be given to reset, checkout and merge.
+     * <pre>
+     * @param name
+     */
+    public void reflog(String name) {
+        List<Refs.LogEntry> entries = refs.readLog(name);
+        if (entries.isEmpty() && refs.get(name) == null && !name.equals(Refs.HEAD)) {
+            exit("A branch with that name does not exist.");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < entries.size(); i += 1) {
+            Refs.LogEntry entry = entries.get(i);
+            sb.append(entry.newId, 0, 7).append(' ').append(name).append("@{").append(i)
+                .append("}: ").append(entry.message).append('\n');
+        }
+        System.out.print(sb);
+    }
+
+    /**
+     * <pre>
+     * java gitlet.Main fsck
+     * Verifies the objects of the repository, loose or packed:
+     *     every blob and tree hashes to its id, every commit decodes;
+     *     every commit, tree and blob reachable from a branch, and every
+     *     staged blob, is stored.
+     * Prints one line per problem, nothing if there is none. Commit ids
+     * hash the date as printed in the time zone they were made in, so
+     * commits are checked to decode, not against their id.
+     * <pre>
+     */
+    public void fsck() {
+        List<String> problems = new ArrayList<>();
+        // blob id -> names it is stored under, for blobs of older versions.
+        Map<String, Set<String>> blobNames = new TreeMap<>();
+        Set<String> checked = new HashSet<>();
+
+        Deque<String> commits = new ArrayDeque<>();
+        for (String commitId : refs.all().values()) {
+            commits.push(commitId);
+        }
+        Set<String> seenCommits = new HashSet<>();
+        Set<String> seenTrees = new HashSet<>();
+        while (!commits.isEmpty()) {
+            String commitId = commits.pop();
+            if (!seenCommits.add(commitId)) {
+                continue;
+            }
+            Commit commit = fsckCommit(commitId, problems);
+            checked.add(commitId);
+            if (commit == null) {
+                continue;
+            }
+            commits.addAll(commit.getParents());
+            if (commit.getTreeId() == null) {
+                // an older commit, naming its files itself.
+                for (Map.Entry<String, String> entry : commit.getBlobs().entrySet()) {
+                    String blobId = entry.getValue();
+                    if (commit.isSerialized() && legacyIds.lookup(blobId) != null) {
+                        blobId = legacyIds.lookup(blobId);
+                    }
+                    blobNames.computeIfAbsent(blobId, k -> new HashSet<>()).add(entry.getKey());
+                }
+            } else {
+                fsckTrees(commit.getTreeId(), seenTrees, blobNames, problems);
+            }
+        }
+        checked.addAll(seenTrees);
+        for (Map.Entry<String, Set<String>> entry : blobNames.entrySet()) {
+            if (!blobStore.contains(entry.getKey())) {
+                problems.add("missing blob " + entry.getKey());
+            } else {
+                fsckBlob(blobStore, entry.getKey(), entry.getValue(), problems);
+            }
+            checked.add(entry.getKey());
+        }
+        for (String blobId : new TreeSet<>(readStage().getAdded().values())) {
+            if (stagingStore.contains(blobId)) {
+                fsckBlob(stagingStore, blobId, Set.of(), problems);
+            } else if (!blobStore.contains(blobId)) {
+                problems.add("missing blob " + blobId);
+            }
+        }
+
+        // the objects no branch refers to.
+        for (String commitId : getAllCommitIds()) {
+            if (!checked.contains(commitId)) {
+                fsckCommit(commitId, problems);
+            }
+        }
+        TreeSet<String> trees = new TreeSet<>(treeStore.getStore().looseIds());
+        trees.addAll(packs.ids(PackFile.TREE));
+        for (String treeId : trees) {
+            if (!checked.contains(treeId)) {
+                fsckTree(treeId, problems);
+            }
+        }
+        TreeSet<String> blobs = new TreeSet<>(blobStore.looseIds());
+        blobs.addAll(packs.ids(PackFile.BLOB));
+        blobs.addAll(packs.ids(PackFile.DELTA));
+        for (String blobId : blobs) {
+            if (!checked.contains(blobId)) {
+                fsckBlob(blobStore, blobId, Set.of(), problems);
+            }
+        }
+
+        for (String problem : problems) {
+            System.out.println(problem);
+        }
+    }
+
+    /**
+     * @return commit COMMITID decoded from disk, or null if it is missing
+     *         or corrupt, which is added to PROBLEMS.
+     */
+    private Commit fsckCommit(String commitId, List<String> problems) {
+        if (!hasCommit(commitId)) {
+            problems.add("missing commit " + commitId);
+            return null;
+        }
+        try {
+            // not through the cache, which may hide what is on disk.
+            File file = getCommitFile(commitId);
+            byte[] bytes = file.isFile() ? readContents(file) : packs.read(commitId);
+            return Commit.decode(commitId, bytes, treeStore);
+        } catch (RuntimeException excp) {
+            problems.add("error: bad commit " + commitId + ": " + excp.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Check the trees below TREEID not in SEEN (to which they are added),
+     * adding the names of their blobs to BLOBNAMES.
+     */
+    private void fsckTrees(String treeId, Set<String> seen, Map<String, Set<String>> blobNames,
+                           List<String> problems) {
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(treeId);
+        while (!stack.isEmpty()) {
+            String id = stack.pop();
+            if (id.equals(Tree.EMPTY_ID) || !seen.add(id)) {
+                continue;
+            }
+            Tree tree = fsckTree(id, problems);
+            if (tree == null) {
+                continue;
+            }
+            for (Map.Entry<String, Tree.Entry> entry : tree.getEntries().entrySet()) {
+                if (entry.getValue().isTree()) {
+                    stack.push(entry.getValue().getId());
+                } else {
+                    blobNames.computeIfAbsent(entry.getValue().getId(), k -> new HashSet<>())
+                        .add(entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return tree TREEID, or null if it is missing, corrupt or does not
+     *         hash to its id, which is added to PROBLEMS.
+     */
+    private Tree fsckTree(String treeId, List<String> problems) {
+        ObjectStore store = treeStore.getStore();
+        if (!store.contains(treeId)) {
+            problems.add("missing tree " + treeId);
+            return null;
+        }
+        try {
+            byte[] bytes;
+            try (InputStream in = store.open(treeId)) {
+                bytes = in.readAllBytes();
+            }
+            if (!sha1(bytes).equals(treeId)) {
+                problems.add("error: sha1 mismatch for tree " + treeId);
+                return null;
+            }
+            return Tree.decode(bytes);
+        } catch (IOException | RuntimeException excp) {
+            problems.add("error: bad tree " + treeId + ": " + excp.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Check that blob BLOBID of STORE hashes to its id: the hash of its
+     * content, or of one of its NAMES then its content for a blob of an
+     * older version.
+     */
+    private void fsckBlob(ObjectStore store, String blobId, Set<String> names,
+                          List<String> problems) {
+        try {
+            try (InputStream in = store.open(blobId)) {
+                String hash = sha1("", in);
+                // a blob id of the first versions, also stored by content id.
+                if (hash.equals(blobId) || hash.equals(legacyIds.lookup(blobId))) {
+                    return;
+                }
+            }
+            for (String name : names) {
+                try (InputStream in = store.open(blobId)) {
+                    if (sha1(name, in).equals(blobId)) {
+                        return;
+                    }
+                }
+            }
+            problems.add("error: sha1 mismatch for blob " + blobId);
+        } catch (IOException | RuntimeException excp) {
+            problems.add("error: bad blob " + blobId + ": " + excp.getMessage());
+        }
+    }
+
+    /**
+     * <pre>
+     * Copy from repository FROM the objects reachable from WANT and not
+     * from HAVES, the tips of the branches of this repository: all that
+     * this one lacks, as everything a branch reaches is stored. Tips FROM
+     * does not know are of no help and ignored. The objects are found
+     * with the reachability bitmaps of FROM, if it has any (see ObjectWalk).
+     *
+     * The blobs are copied first, then the trees, subtrees first, then
+     * the commits, parents first: a stored object never misses a part.
+     * <pre>
+     * @param from repository holding commit WANT
+     * @param want complete commit id
+     * @param haves complete commit ids
+     */
+    private void copyCommitsFrom(Repository from, String want, Collection<String> haves) {
+        // no gc deletes an object found here before the branch refers to it.
+        lockStage();
+        List<String> known = new ArrayList<>();
+        for (String have : haves) {
+            if (from.hasCommit(have)) {
+                known.add(have);
+            }
+        }
+        ObjectWalk.ObjectSet missing = from.objectWalk().missing(List.of(want), known);
+
+        Set<String> trees = new LinkedHashSet<>();
+        List<Integer> commits = new ArrayList<>();
+        missing.forEach((id, type) -> {
+            if (type == PackFile.BLOB) {
+                blobStore.copyFrom(from.blobStore, id);
+            } else if (type == PackFile.TREE) {
+                trees.add(id);
+            } else {
+                commits.add(from.commitGraph.indexOf(id));
+            }
+        });
+        copyTreesFrom(from, trees);
+        // commits are numbered parents first.
+        commits.sort(null);
+        for (int i : commits) {
+            String commitId = from.commitGraph.idAt(i);
+            if (hasCommit(commitId)) {
+                // unreachable here, but kept.
+                continue;
+            }
+            Commit commit = from.getCommitFromId(commitId);
+            writeCommitToFile(commit);
+            commitGraph.add(commit);
+        }
+    }
+
+    /**
+     * Copy the trees TREES from repository FROM, each after those of its
+     * subtrees that are in TREES.
+     */
+    private void copyTreesFrom(Repository from, Set<String> trees) {
+        Set<String> done = new HashSet<>();
+        for (String root : trees) {
+            // post-order: a tree once all its subtrees are done.
+            Deque<String> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                String id = stack.peek();
+                if (done.contains(id)) {
+                    stack.pop();
+                    continue;
+                }
+                boolean ready = true;
+                for (Tree.Entry entry : from.treeStore.read(id).getEntries().values()) {
+                    if (entry.isTree() && trees.contains(entry.getId())
+                        && !done.contains(entry.getId())) {
+                        stack.push(entry.getId());
+                        ready = false;
+                    }
+                }
+                if (ready) {
+                    stack.pop();
+                    treeStore.getStore().copyFrom(from.treeStore.getStore(), id);
+                    done.add(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a walk of the objects of this repository, through the
+     *         reachability bitmaps of its pack if it has any.
+     */
+    private ObjectWalk objectWalk() {
+        return new ObjectWalk(commitGraph, this::getCommitFromId, treeStore, packs.bitmaps());
+    }
+
+    /**
+     * Traverse matching remote name, and ignore(skip) successful matched value.
+     * @param remoteName
+     */
+    private void rmConfig(String remoteName) {
+        try (LockFile lock = LockFile.acquire(CONFIG)) {
+            lock.write(removeRemote(readContentsAsString(CONFIG), remoteName));
+        }
+    }
+
+    /**
+     * @return the config CONTENTS without the remote REMOTENAME.
+     */
+    private static String removeRemote(String contents, String remoteName) {
+        String[] lines = contents.split("\n");
+        String target = "[remote \"" + remoteName + "\"]";
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < lines.length;) {
+            if (lines[i].equals(target)) {
+                // skip content
                 i += 2;
+            } else if (!lines[i].isEmpty()) {
+                sb.append(lines[i] + "\n");
+                i += 1;
             } else {
-                sb.append(contents[i]);
+                i += 1;
             }
         }
-        writeConfig(sb.toString());
+        return sb.toString();
     }
 
     /**
@@ -677,18 +1675,30 @@ public class Repository {
      * @param remotePath
      */
     private void addConfig(String remoteName, String remotePath) {
-        String contents = readContentsAsString(CONFIG);
-        contents += "[remote \"" + remoteName + "\"]\n";
-        contents += remotePath + "\n";
-        writeConfig(contents);
-    }
-
-    private void writeConfig(String contents) {
-        writeContents(CONFIG, contents);
+        try (LockFile lock = LockFile.acquire(CONFIG)) {
+            String contents = readContentsAsString(CONFIG);
+            contents += "[remote \"" + remoteName + "\"]\n";
+            contents += remotePath + "\n";
+            lock.write(contents);
+        }
     }
 
-    private void writeBranch(File branchFile, String commitId) {
-        writeContents(branchFile, commitId);
+    /**
+     * <pre>
+     * Point branch NAME at NEWID, under the lock of the branch, if it
+     * still points at OLDID: a branch another process moved since it was
+     * read is not overwritten. A null OLDID accepts any value.
+     * The move is logged with MESSAGE, in the log of HEAD too if NAME is
+     * the current branch.
+     * <pre>
+     */
+    private void updateRef(String name, String oldId, String newId, String message) {
+        // the objects of the commit are on disk before the branch.
+        syncBatch.flush();
+        String old = refs.update(name, oldId, newId, message);
+        if (HEAD.isFile() && name.equals(getHeadBranchName())) {
+            refs.log(Refs.HEAD, old, newId, message);
+        }
     }
 
     /**
@@ -696,7 +1706,9 @@ public class Repository {
      * @param branchName
      */
     private void writeHEAD(String branchName) {
-        writeContents(HEAD, branchName);
+        try (LockFile lock = LockFile.acquire(HEAD)) {
+            lock.write(branchName);
+        }
     }
 
 
@@ -715,20 +1727,19 @@ public class Repository {
     }
 
     private void appendRemovedFiles(StringBuffer sb) {
-        for (String fileName : stage.get().getRemoved()) {
+        for (String fileName : new TreeSet<>(stage.get().getRemoved())) {
             sb.append(fileName + "\n");
         }
     }
 
     private void appendStagedFiles(StringBuffer sb) {
-        for (String fileName : stage.get().getAdded().keySet()) {
+        for (String fileName : new TreeSet<>(stage.get().getAdded().keySet())) {
             sb.append(fileName + "\n");
         }
     }
 
     private void appendBranch(StringBuffer sb) {
-        List<String> branches = plainFilenamesIn(HEADS_DIR);
-        for (String branch : branches) {
+        for (String branch : refs.local().keySet()) {
             if (branch.equals(headBranchName.get())) {
                 sb.append("*" + branch + "\n");
             } else {
@@ -737,45 +1748,15 @@ public class Repository {
         }
     }
 
-    /**
-     * log all commit file as string.
-     * @return String Buffer
-     */
-    private StringBuffer logAllCommit() {
-        StringBuffer sb = new StringBuffer();
-        List<String> commitsFileNames = plainFilenamesIn(COMMIT_DIR);
-        for (String fileName : commitsFileNames) {
-            // at this time, file name == commit id.
-            Commit commit = getCommitFromId(fileName); 
-            sb.append(commit.getCommitAsString());
-        }
-        return sb;
-    }
-
-    /**
-     * <pre>
-     * Get the commit String format from head to init commit 
-     * by Iterator help function.
-     * <pre>
-     * @param p
-     * @return
-     */
-    private StringBuffer logIteratorFromHead(Commit p) {
-        StringBuffer sb = new StringBuffer();
-        while (p != null) {
-            sb.append(p.getCommitAsString());
-            p = getCommitFromId(p.getFirstParentId());
-        }
-        return sb;
-    }
-
-
     private void stageForRemoved(String fileName) {
         stage.get().getRemoved().add(fileName);
     }
 
     private void unstageBlob(String fileName) {
-        stage.get().getAdded().remove(fileName);
+        String blobId = stage.get().getAdded().remove(fileName);
+        if (!stage.get().getAdded().containsValue(blobId)) {
+            stagingStore.deleteLoose(blobId);
+        }
     }
 
 
@@ -786,50 +1767,19 @@ public class Repository {
         writeContents(CONFIG, "");
     }
 
-    /**
-     * update Stage's added(file name -> id) and serialize stage.
-     * @param fileName
-     * @param cwdBlobId
-     */
-    private void updateStageAddedBlob(String fileName, String cwdBlobId) {
-        stage.get().add(fileName, cwdBlobId);
-        writeStage(stage.get());
-    }
-
 
     /**
      * create Master and HEAD
      * @param initialCommit
      */
     private void initReference(String id) {
-        File defaultBranchFile = join(HEADS_DIR, DEFAULT_BRANCH);
-        writeContents(defaultBranchFile, id); // .gitlet/refs/heads/master(defalut)
         writeHEAD(DEFAULT_BRANCH); // .gitlet/HEAD
+        // .gitlet/refs/heads/master(defalut)
+        updateRef(DEFAULT_BRANCH, null, id, "commit (initial): initial commit");
     }
 
     private void createStage() {
-        writeObject(STAGE, new Stage());
-    }
-
-    /**
-     * bfs get the history commits.
-     * @param head
-     * @return
-     */
-    private List<String> getHistoryId(Commit head) {
-        List<String> res = new LinkedList<>();
-        Queue<Commit> queue = new LinkedList<>();
-        queue.add(head);
-        while (!queue.isEmpty()) {
-            Commit commit = queue.poll();
-            if (!res.contains(commit.getId()) && !commit.getParents().isEmpty()) {
-                for (String id : commit.getParents()) {
-                    queue.add(getCommitFromId(id));
-                }
-            }
-            res.add(commit.getId());
-        }
-        return res;
+        new Stage().write(STAGE);
     }
 
     /**
@@ -851,7 +1801,9 @@ public class Repository {
 
         File file = null;
         try {
-            file = new File(path).getCanonicalFile();
+            // relative to the working directory, not to the process.
+            file = new File(path);
+            file = (file.isAbsolute() ? file : join(CWD, path)).getCanonicalFile();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -864,13 +1816,14 @@ public class Repository {
     private List<String> getModifiedFiles(Commit head, Stage stage) {
         List<String> res = new LinkedList<>();
 
-        List<String> currentFiles = plainFilenamesIn(CWD);
+        List<String> currentFiles = listWorkingFiles();
+        Map<String, String> blobIds = getWorkingBlobIds(currentFiles);
         for (String fileName : currentFiles) {
-            Blob blob = new Blob(fileName, CWD);
+            String blobId = blobIds.get(fileName);
             // case1: Tracked in the current commit, changed in the working directory, but not
             // staged; or
             boolean tracked = head.getBlobs().containsKey(fileName);
-            boolean changed = !blob.getId().equals(head.getBlobs().get(fileName));
+            boolean changed = !blobId.equals(head.getBlobs().get(fileName));
             boolean staged = stage.getAdded().containsKey(fileName);
             if (tracked && changed && !staged) {
                 res.add(fileName + " (modified)");
@@ -878,14 +1831,14 @@ public class Repository {
             }
             // case2: Staged for addition, but with different contents than in the working
             // directory; or
-            changed = !blob.getId().equals(stage.getAdded().get(fileName));
+            changed = !blobId.equals(stage.getAdded().get(fileName));
             if (staged && changed) {
                 res.add(fileName + " (modified)");
             }
         }
         // case3: Staged for addition, but deleted in the working directory; or
         for (String fileName : stage.getAdded().keySet()) {
-            if (!currentFiles.contains(fileName)) {
+            if (!blobIds.containsKey(fileName)) {
                 res.add(fileName + " (deleted)");
             }
         }
@@ -893,7 +1846,7 @@ public class Repository {
         // working directory.
         for (String fileName : head.getBlobs().keySet()) {
             boolean stagedForRemoval = stage.getRemoved().contains(fileName);
-            boolean cwdContains = currentFiles.contains(fileName);
+            boolean cwdContains = blobIds.containsKey(fileName);
             if (!stagedForRemoval && !cwdContains) {
                 res.add(fileName + " (deleted)");
             }
@@ -932,150 +1885,107 @@ public class Repository {
     }
 
     /**
-     * Get all the file and judging what needs to be done by the status of these files.
+     * Merge the files OTHER changed since LCA into the working directory
+     * and stage them. Only the files found by the three-way tree diff are
+     * looked at, so the cost depends on what changed, not on the snapshot.
      *
      * @param lca
      * @param head
      * @param other
      */
     private void mergeWithLca(Commit lca, Commit head, Commit other) {
-        Set<String> fileNames = getAllFileName(lca, head, other);
-
-        List<String> remove = new LinkedList<>();
-        List<String> rewrite = new LinkedList<>();
-        List<String> conflict = new LinkedList<>();
-
-        for (String fileName : fileNames) {
-            String lId = lca.getBlobs().getOrDefault(fileName, "");
-            String hId = head.getBlobs().getOrDefault(fileName, "");
-            String oId = other.getBlobs().getOrDefault(fileName, "");
-
-            if (hId.equals(oId) || lId.equals(oId)) {
-                continue;
-            }
-            if (lId.equals(hId)) {
-                if (oId.equals("")) {
-                    remove.add(fileName);
+        // fileName -> blob id of head, other.
+        Map<String, String> remove = new TreeMap<>();
+        Map<String, String> rewrite = new TreeMap<>();
+        // changed on both sides: fileName -> blob id of lca, head, other.
+        Map<String, String[]> conflict = new TreeMap<>();
+        // files head does not track, which the merge writes.
+        List<String> created = new ArrayList<>();
+
+        new TreeDiff(treeStore).threeWay(treeIdOf(lca), treeIdOf(head), treeIdOf(other),
+            (fileName, lId, hId, oId) -> {
+                if (hId == null) {
+                    created.add(fileName);
+                }
+                if (Objects.equals(lId, hId)) {
+                    if (oId == null) {
+                        remove.put(fileName, hId);
+                    } else {
+                        // Any files that were not present at the split
+                        // point and are present only in the given branch
+                        // should be checked out and staged.
+                        rewrite.put(fileName, oId);
+                    }
                 } else {
-                    // Any files that were not present at the split
-                    // point and are present only in the given branch
-                    // should be checked out and staged.
-                    rewrite.add(fileName);
+                    conflict.put(fileName, new String[] {lId, hId, oId});
                 }
-            } else {
-                conflict.add(fileName);
-            }
-        }
+            });
 
         // If an untracked file in the current commit would
         // be overwritten or deleted by the merge,
-        List<String> untrackedFiles = getUntrackedFiles();
-        for (String fileName : untrackedFiles) {
-            if (remove.contains(fileName) || rewrite.contains(fileName)
-            || conflict.contains(fileName)) {
+        for (String fileName : created) {
+            if (join(CWD, fileName).isFile()) {
                 exit("There is an untracked file in the way;"
                     + " delete it, or add and commit it first.");
             }
         }
 
-        if (!remove.isEmpty()) {
-            for (String fileName : remove) {
-                rm(fileName);
+        // tracked and unchanged since head, so not in the working directory.
+        Map<String, String> cwdBlobIds = getWorkingBlobIds(new ArrayList<>(remove.keySet()));
+        for (Map.Entry<String, String> entry : remove.entrySet()) {
+            stageForRemoved(entry.getKey());
+            if (entry.getValue().equals(cwdBlobIds.get(entry.getKey()))) {
+                deleteWorkingFile(entry.getKey());
             }
         }
 
         // fileName -> blobId -> blob -> blobFile -> write
-        if (!rewrite.isEmpty()) {
-            // Any files that were not present at the split
-            // point and are present only in the given branch
-            // should be checked out and staged.
-            for (String fileName : rewrite) {
-                String oId = other.getBlobs().getOrDefault(fileName, "");
-                Blob blob = getBlobFromId(oId);
-                checkoutFileFromBlob(blob);
-                // add the file.
-                add(fileName);
-            }
-        }
-
-        if (!conflict.isEmpty()) {
-            for (String fileName : conflict) {
-                String hId = head.getBlobs().getOrDefault(fileName, "");
-                String oId = other.getBlobs().getOrDefault(fileName, "");
-
-                String headContent = getContentAsStringFromBlobId(hId);
-                String otherContent = getContentAsStringFromBlobId(oId);
-                String content = getConflictFile(headContent.split("\n"), otherContent.split("\n"));
-                // rewrite file and and stage the result.
-                rewriteFile(fileName, content);
-                add(fileName);
+        for (Map.Entry<String, String> entry : rewrite.entrySet()) {
+            checkoutFileFromBlob(entry.getKey(), entry.getValue());
+            // the blob is stored already, stage it as it is.
+            stage.get().add(entry.getKey(), entry.getValue());
+        }
+
+        for (Map.Entry<String, String[]> entry : conflict.entrySet()) {
+            String[] ids = entry.getValue();
+            String ours = getContentAsStringFromBlobId(ids[1]);
+            String theirs = getContentAsStringFromBlobId(ids[2]);
+            // deleted on one side and changed on the other conflicts as a
+            // whole: from an empty base, a deletion changes no line.
+            // Otherwise only the lines changed on both sides conflict.
+            Merge3 merged = ids[0] != null && (ids[1] == null || ids[2] == null)
+                ? Merge3.conflict(ours, theirs)
+                : Merge3.merge(getContentAsStringFromBlobId(ids[0]), ours, theirs);
+            // rewrite file and and stage the result.
+            rewriteFile(entry.getKey(), merged.getText());
+            if (merged.hasConflict()) {
                 System.out.println("Encountered a merge conflict.");
             }
         }
+        Map<String, String> conflictBlobIds = getWorkingBlobIds(new ArrayList<>(conflict.keySet()));
+        for (Map.Entry<String, String> entry : conflictBlobIds.entrySet()) {
+            if (!blobStore.contains(entry.getValue()) && !stagingStore.contains(entry.getValue())) {
+                writeBlobToStaging(entry.getValue(), join(CWD, entry.getKey()));
+            }
+            stage.get().add(entry.getKey(), entry.getValue());
+        }
 
+        writeStage(stage.get());
     }
 
     private void rewriteFile(String fileName, String content) {
         File file = join(CWD, fileName);
+        file.getParentFile().mkdirs();
         writeContents(file, content);
     }
 
-    private String getConflictFile(String[] head, String[] other) {
-        StringBuffer sb = new StringBuffer();
-        int len1 = head.length, len2 = other.length;
-        int i = 0, j = 0;
-        while (i < len1 && j < len2) {
-            if (head[i].equals(other[i])) {
-                sb.append(head[i]);
-            } else {
-                sb.append(getConflictContent(head[i], other[i]));
-            }
-            i += 1;
-            j += 1;
-        }
-
-        while (i < len1) {
-            sb.append(getConflictContent(head[i], ""));
-            i += 1;
-        }
-        while (j < len2) {
-            sb.append(getConflictContent("", other[i]));
-            j += 1;
-        }
-        return sb.toString();
-    }
-
-    private String getConflictContent(String head, String other) {
-        StringBuffer sb = new StringBuffer();
-        sb.append("<<<<<<< HEAD\n");
-        sb.append(head.equals("") ? head : head + "\n");
-        sb.append("=======\n");
-        sb.append(other.equals("") ? other : other + "\n");
-        sb.append(">>>>>>>\n");
-        return sb.toString();
-    }
-
     private String getContentAsStringFromBlobId(String blobId) {
-        if (blobId.equals("")) {
+        if (blobId == null) {
             return "";
         }
-        return getBlobFromId(blobId).getContentAsString();
-    }
-
-    /**
-     * get all commits's files.
-     * @param lca
-     * @param head
-     * @param other
-     * @return
-     */
-    private Set<String> getAllFileName(Commit lca, Commit head, Commit other) {
-        Set<String> set = new HashSet<>();
-        set.addAll(lca.getBlobs().keySet());
-        set.addAll(head.getBlobs().keySet());
-        set.addAll(other.getBlobs().keySet());
-
-        return set;
+        // staged blobs stay in the staging area until committed.
+        ObjectStore store = stagingStore.contains(blobId) ? stagingStore : blobStore;
+        return new String(store.read(blobId), StandardCharsets.UTF_8);
     }
 
     /**
@@ -1084,40 +1994,13 @@ public class Repository {
      * @return
      */
     private Commit getLca(Commit head, Commit other) {
-        // get the headAncestors using bfs
-        Set<String> headAncestors = bfsFromCommit(head);
-        Queue<Commit> queue = new LinkedList<>();
-        queue.add(other);
-
-        while (!queue.isEmpty()) {
-            Commit commit = queue.poll();
-            if (headAncestors.contains(commit.getId())) {
-                return commit;
-            }
-            if (!commit.getParents().isEmpty()) {
-                for (String id : commit.getParents()) {
-                    queue.add(getCommitFromId(id));
-                }
-            }
+        // of several best common ancestors, the one with the highest generation.
+        int lca = mergeBase.best(commitGraph.indexOf(head.getId()),
+            commitGraph.indexOf(other.getId()));
+        if (lca < 0) {
+            return new Commit();
         }
-        return new Commit();
-    }
-
-    private Set<String> bfsFromCommit(Commit head) {
-        Set<String> res = new HashSet<>();
-        Queue<Commit> queue = new LinkedList<>();
-        queue.add(head);
-        while (!queue.isEmpty()) {
-            Commit commit = queue.poll();
-            if (!res.contains(commit.getId()) && !commit.getParents().isEmpty()) {
-                for (String id : commit.getParents()) {
-                    queue.add(getCommitFromId(id));
-                }
-            }
-            res.add(commit.getId());
-        }
-
-        return res;
+        return getCommitFromId(commitGraph.idAt(lca));
     }
 
     /**
@@ -1125,22 +2008,58 @@ public class Repository {
      * @return
      */
     private String getHeadCommitId() {
-        String branchName = getHeadBranchName();
-        File branchFile = getBranchFile(branchName);
-        return readContentsAsString(branchFile);
+        return refs.get(getHeadBranchName());
     }
 
+    /**
+     * Resolve an abbreviated commit id by binary search in the commit index,
+     * or NAME@{N}, the commit branch NAME (or HEAD) was at N moves ago.
+     * @param commitId abbreviated or complete id, or NAME@{N}
+     * @return the first complete id starting with COMMITID, or null.
+     */
     private String getCompleteCommitId(String commitId) {
+        Matcher logged = REFLOG_ENTRY.matcher(commitId);
+        if (logged.matches()) {
+            List<Refs.LogEntry> entries = refs.readLog(logged.group(1));
+            int n = Integer.parseInt(logged.group(2));
+            return n < entries.size() ? entries.get(n).newId : null;
+        }
         if (commitId.length() == UID_LENGTH) {
             return commitId;
         }
+        if (commitId.isEmpty() || !commitId.matches("[0-9a-f]+")) {
+            return null;
+        }
+        if (!commitIndex.exists()) {
+            // repositories created before the index existed.
+            commitIndex.rebuild(getAllCommitIds());
+        }
+        TreeSet<String> ids = commitIndex.withPrefix(commitId);
+        return ids.isEmpty() ? null : ids.first();
+    }
 
-        for (String fileName : COMMIT_DIR.list()) {
-            if (fileName.startsWith(commitId)) {
-                return fileName;
-            }
+    /**
+     * @param name branch name or (abbreviated) commit id
+     * @return the complete id of the commit NAME designates, or null.
+     */
+    private String resolveCommitId(String name) {
+        String branchId = refs.get(name);
+        if (branchId != null) {
+            return branchId;
         }
-        return null;
+        String commitId = getCompleteCommitId(name);
+        if (commitId == null || !hasCommit(commitId)) {
+            return null;
+        }
+        return commitId;
+    }
+
+    /**
+     * @param commitId complete commit id
+     * @return the loose file of the commit.
+     */
+    private File getCommitFile(String commitId) {
+        return ObjectStore.looseFileIn(COMMIT_DIR, commitId);
     }
 
     /**
@@ -1150,44 +2069,76 @@ public class Repository {
      */
     private void checkoutFileFromCommit(String fileName, Commit commit) {
         String  blobId = commit.getBlobs().getOrDefault(fileName, "");
-        checkoutFileFromBlobId(blobId);
+        checkoutFileFromBlobId(fileName, blobId);
     }
 
     /**
      * blobId(need check exist) -> (blob -> file -> writecontents)
+     * @param fileName
      * @param blobId
      */
-    private void checkoutFileFromBlobId(String blobId) {
+    private void checkoutFileFromBlobId(String fileName, String blobId) {
         if (blobId.equals("")) {
             exit("File does not exist in that commit.");
         }
-        Blob blob = getBlobFromId(blobId);
-        checkoutFileFromBlob(blob);
+        checkoutFileFromBlob(fileName, blobId);
     }
 
-    private void checkoutFileFromBlob(Blob blob) {
-        File file = join(CWD, blob.getFileName());
-        writeContents(file, blob.getContent());
+    /**
+     * Stream the stored blob into the working file.
+     * @param fileName
+     * @param blobId
+     */
+    private void checkoutFileFromBlob(String fileName, String blobId) {
+        File file = join(CWD, fileName);
+        if (file.isDirectory()) {
+            delFileRec(file);
+        }
+        file.getParentFile().mkdirs();
+        blobStore.copyTo(blobId, file);
     }
 
-    private Blob getBlobFromId(String blobId) {
-        File file = join(BLOBS_DIR, blobId);
-        return readObject(file, Blob.class);
+    /**
+     * Delete the working file FILENAME, and the directories it leaves empty.
+     */
+    private void deleteWorkingFile(String fileName) {
+        File file = join(CWD, fileName);
+        if (!file.isFile()) {
+            return;
+        }
+        file.delete();
+        for (File dir = file.getParentFile(); !dir.equals(CWD); dir = dir.getParentFile()) {
+            // only succeeds on an empty directory.
+            if (!dir.delete()) {
+                break;
+            }
+        }
     }
 
-    // TODO: with directory tries abs.
     /**
-     * @param commit Commit Object which will be Serialized.
+     * Encode the commit into its fanned out file and record its id.
+     * @param commit Commit Object which will be encoded.
      */
     private void writeCommitToFile(Commit commit) {
-        File file = join(COMMIT_DIR, commit.getId()); // now, without Tries firstly...
-        writeObject(file, commit);
+        treeIdOf(commit);
+        File file = getCommitFile(commit.getId());
+        file.getParentFile().mkdirs();
+        // renamed into place, as the other objects (see ObjectStore).
+        File tmp = join(file.getParentFile(), file.getName() + ".tmp");
+        writeContents(tmp, (Object) commit.encode());
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        syncBatch.add(file);
+        commitIndex.add(commit.getId());
+        messageIndex.add(commit.getId(), commit.getMessage());
     }
 
     private Commit getHead() {
-        String branchName = getHeadBranchName();
-        File branchFile = getBranchFile(branchName);
-        Commit head = getCommitFromBranchFile(branchFile);
+        Commit head = getCommitFromBranchName(getHeadBranchName());
 
         if (head == null) {
             exit("error: can't find this branch");
@@ -1196,35 +2147,14 @@ public class Repository {
         return head;
     }
 
-    private File getBranchFile(String branchName) {
-        File file = null;
-        String[] branches = branchName.split("/");
-        if (branches.length == 1) {
-            file = join(HEADS_DIR, branchName);
-        } else if (branches.length == 2) {
-            file = join(REMOTES_DIR, branches[0], branches[1]);
-        }
-        return file;
-    }
-
-    /**
-     * branchFile -> commitId -> commit
-     * @param file
-     * @return
-     */
-    private Commit getCommitFromBranchFile(File file) {
-        String commitId = readContentsAsString(file);
-        return getCommitFromId(commitId);
-    }
-
     /**
-     * branchName -> branchFile -> commitId -> commit
+     * branchName -> commitId -> commit
      * @param branchName
      * @return
      */
     private Commit getCommitFromBranchName(String branchName) {
-        File file = getBranchFile(branchName);
-        return getCommitFromBranchFile(file);
+        String commitId = refs.get(branchName);
+        return commitId == null ? null : getCommitFromId(commitId);
     }
 
 
@@ -1233,28 +2163,151 @@ public class Repository {
     }
 
     private Commit getCommitFromId(String commitId) {
-        File file = join(COMMIT_DIR, commitId);
+        File file = getCommitFile(commitId);
         // original: commitId.equals("null") ...
-        if (commitId.equals("") || !file.exists()) {
+        if (commitId.equals("")) {
+            return null;
+        }
+        Commit commit = objectCache.get(commitId, Commit.class);
+        if (commit != null) {
+            return commit;
+        }
+        byte[] bytes = file.exists() ? readContents(file) : packs.read(commitId);
+        if (bytes == null) {
             return null;
         }
-        return readObject(file, Commit.class);
-    } 
+        commit = Commit.decode(commitId, bytes, treeStore);
+        if (commit.isSerialized()) {
+            // the first versions hashed the file name into a blob id.
+            commit.setBlobs(legacyIds.resolveAll(commit.getBlobs(), blobStore));
+        }
+        // the decoded header takes about twice the encoded size.
+        objectCache.put(commitId, commit, 2L * bytes.length);
+        return commit;
+    }
+
+    /**
+     * @return the cache of the objects of this repository.
+     */
+    ObjectCache getObjectCache() {
+        return objectCache;
+    }
+
+    /**
+     * @return the id of the root tree of COMMIT, building (and storing)
+     *         it first for a commit of an older version.
+     */
+    private String treeIdOf(Commit commit) {
+        if (commit.getTreeId() == null) {
+            commit.setTreeId(treeStore.fromBlobs(commit.getBlobs()));
+        }
+        return commit.getTreeId();
+    }
+
+    /**
+     * @param commitId complete commit id
+     * @return whether the commit is stored, loose or packed.
+     */
+    private boolean hasCommit(String commitId) {
+        return getCommitFile(commitId).isFile() || packs.contains(commitId);
+    }
+
+    /**
+     * @return the sorted ids of all the commits, loose or packed.
+     */
+    private List<String> getAllCommitIds() {
+        TreeSet<String> ids = packs.ids(PackFile.COMMIT);
+        ids.addAll(ObjectStore.looseIdsIn(COMMIT_DIR));
+        return new ArrayList<>(ids);
+    }
 
     private Stage readStage() {
-        return readObject(STAGE, Stage.class);
+        Stage res = Stage.read(STAGE);
+        if (res.isSerialized()) {
+            res.getAdded().replaceAll((fileName, blobId) -> legacyIds.resolve(blobId,
+                stagingStore.contains(blobId) ? stagingStore : blobStore));
+        }
+        return res;
     }
 
     private void writeStage(Stage stage) {
-        writeObject(STAGE, stage);
+        lockStage();
+        // the staged blobs are on disk before the stage.
+        syncBatch.flush();
+        stage.write(stageLock);
+    }
+
+    /**
+     * Lock the stage until the command ends, waiting for another process
+     * holding it. To be called before the stage is read.
+     */
+    private void lockStage() {
+        if (stageLock == null) {
+            stageLock = LockFile.acquire(STAGE);
+        }
+    }
+
+    /**
+     * Lock the stage until the command ends, unless another process
+     * holds it.
+     * @return whether the stage is locked.
+     */
+    private boolean tryLockStage() {
+        if (stageLock == null) {
+            stageLock = LockFile.tryAcquire(STAGE);
+        }
+        return stageLock != null;
+    }
+
+    /**
+     * Release the locks held by the command, once it ends, whether
+     * it succeeded or not.
+     */
+    void unlock() {
+        if (stageLock != null) {
+            stageLock.close();
+            stageLock = null;
+        }
+    }
+
+    /**
+     * Release what the repository holds: its locks and its open packs.
+     * Commands run through Main.run are unlocked as they end; a caller
+     * running commands itself closes the repository after each one.
+     */
+    @Override
+    public void close() {
+        unlock();
+        if (!sharedPacks) {
+            packs.close();
+        }
+    }
+
+    /**
+     * @param fileName name of a working file
+     * @return the blob id of the working file, without reading it
+     *         if the stage's stat cache knows it.
+     */
+    private String getWorkingBlobId(String fileName) {
+        return getWorkingBlobIds(List.of(fileName)).get(fileName);
+    }
+
+    /**
+     * @param fileNames names of working files
+     * @return file name -> blob id, in the order of FILENAMES; the files
+     *         the stat cache does not know are hashed in parallel.
+     */
+    private Map<String, String> getWorkingBlobIds(List<String> fileNames) {
+        return stage.get().blobIdsOf(fileNames, CWD, files -> HashPool.hashAll(files,
+            file -> new Blob(file.getName(), file.getParentFile()).getId()));
     }
 
     /**
      * @param blobId for file Name
-     * @param blob for file Contents
+     * @param file for file Contents
      */
-    private void writeBlobToStaging(String blobId, Blob blob) {
-        writeObject(join(STAGING_DIR, blobId), blob);
+    private void writeBlobToStaging(String blobId, File file) {
+        stagingStore.write(blobId, file);
     }
 
     private void commitWith(String msg, List<Commit> parents) {
@@ -1263,12 +2316,22 @@ public class Repository {
             exit("No changes added to the commit.");
         }
 
-        Commit commit = new Commit(msg, parents, stage.get());
-        // The staging area is cleared after a commit.
-        clearStage(stage.get());
+        // only the trees on the paths to the staged files change.
+        Map<String, String> changes = new HashMap<>(stage.get().getAdded());
+        for (String fileName : stage.get().getRemoved()) {
+            changes.put(fileName, null);
+        }
+        String tree = treeStore.update(treeIdOf(parents.get(0)), changes);
+        Commit commit = new Commit(msg, parents, tree, treeStore);
+        // blobs, commit, then branch: no process finds a commit missing a file.
+        commitStagedBlobs();
         writeCommitToFile(commit);
+        commitGraph.add(commit);
 
-        updateBranch(commit);
+        // the stage is kept if the branch cannot be moved.
+        updateBranch(commit, parents.get(0).getId());
+        // The staging area is cleared after a commit.
+        writeStage(stage.get().cleared());
     }
 
     /**
@@ -1276,29 +2339,30 @@ public class Repository {
      * @param stage
      */
     private void clearStage(Stage stage) {
-        File[] files = STAGING_DIR.listFiles(File::isFile);
-        if (files == null) {
-            return;
-        }
-        Path targetDir = BLOBS_DIR.toPath();
-        for (File file: files) {
-            Path source = file.toPath();
-            try {
-                Files.move(source, targetDir.resolve(source.getFileName()), REPLACE_EXISTING);
-            } catch (IOException e) {
-                e.printStackTrace();
+        commitStagedBlobs();
+
+        // will cover stage, but keep its stat cache.
+        writeStage(stage.cleared());
+    }
+
+    private void commitStagedBlobs() {
+        Set<String> staged = new HashSet<>(stage.get().getAdded().values());
+        for (String blobId : stagingStore.looseIds()) {
+            if (staged.contains(blobId)) {
+                blobStore.moveFrom(stagingStore, blobId);
+            } else {
+                // unstaged since, by a command that died before deleting it.
+                stagingStore.deleteLoose(blobId);
             }
         }
-
-        // will cover stage.
-        writeStage(new Stage());
     }
 
-    private void updateBranch(Commit commit) {
-        String commitId = commit.getId();
-        String branchName = getHeadBranchName();
-        File branch = getBranchFile(branchName);
-        writeContents(branch, commitId);
+    /**
+     * Move the current branch from OLDID to COMMIT.
+     */
+    private void updateBranch(Commit commit, String oldId) {
+        String kind = commit.getParents().size() > 1 ? "commit (merge): " : "commit: ";
+        updateRef(getHeadBranchName(), oldId, commit.getId(), kind + commit.getMessage());
     }
 
     /**
@@ -1311,8 +2375,9 @@ public class Repository {
             return;
         }
 
+        Map<String, String> blobIds = getWorkingBlobIds(untrackedFiles);
         for (String fileName : untrackedFiles) {
-            String blobId = new Blob(fileName, CWD).getId();
+            String blobId = blobIds.get(fileName);
             String otherId = blobs.getOrDefault(fileName, "");
             if (!otherId.equals(blobId)) {
                 exit("There is an untracked file in the way; delete it,"
@@ -1330,7 +2395,7 @@ public class Repository {
      */
     private List<String> getUntrackedFiles() {
         List<String> res = new ArrayList<>();
-        List<String> cwdFileNames = plainFilenamesIn(CWD);
+        List<String> cwdFileNames = listWorkingFiles();
         for (String fileName : cwdFileNames) {
             boolean tracked = head.get().getBlobs().containsKey(fileName);
             boolean staged = stage.get().getAdded().containsKey(fileName);
@@ -1347,12 +2412,7 @@ public class Repository {
         clearWoringSpace();
 
         for (Map.Entry<String, String> entry : commit.getBlobs().entrySet()) {
-            String fileName = entry.getKey();
-            String blobId = entry.getValue();
-            Blob blob = readObject(join(BLOBS_DIR, blobId), Blob.class);
-
-            File file = join(CWD, fileName);
-            writeContents(file, blob.getContent());
+            checkoutFileFromBlob(entry.getKey(), entry.getValue());
         }
     }
 
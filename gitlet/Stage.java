@@ -1,17 +1,58 @@
 package gitlet;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static gitlet.Utils.*;
 
 /**
- * Stage
+ * <pre>
+ * Stage, stored as a binary index file:
+ *
+ *     magic "GLX" | version
+ *     added:   count | (path | blob id)*
+ *     removed: count | path*
+ *     cached:  count | (path | size | mtime | inode | blob id)*
+ *
+ * Besides what is staged, the index caches the stat data of working files
+ * together with their blob id, so a file whose size, mtime and inode did
+ * not change is not read and hashed again.
+ *
+ * A file is only cached if its mtime was older than RACY_WINDOW when it
+ * was hashed: a change made afterwards, even within the timestamp
+ * granularity of the file system, then always gets a different mtime.
+ * <pre>
  */
 public class Stage implements Serializable {
-    // TODO: convert to index file.
+
+    /** Stages were serialized (and still are, inside older commits). */
+    private static final long serialVersionUID = 7185408367688994928L;
+
+    private static final byte[] MAGIC = {'G', 'L', 'X'};
+    private static final int VERSION = 1;
+
+    /** Largest mtime granularity of the file systems we care about. */
+    private static final long RACY_WINDOW = TimeUnit.SECONDS.toNanos(2);
 
     /**
      * Staged for addition.
@@ -29,15 +70,40 @@ public class Stage implements Serializable {
      */
     private Set<String> removed;
 
+    /**
+     * <pre>
+     * Stat data of working files.
+     *
+     * <file name, stat and blob's id>
+     * <pre>
+     */
+    private transient Map<String, Entry> cached;
+
+    /**
+     * Whether the cache changed since the index was read.
+     */
+    private transient boolean cacheChanged;
+
+    /**
+     * Whether the stage was read as a serialized object, whose blob ids
+     * may be those of the first versions (see LegacyIds).
+     */
+    private transient boolean serialized;
+
     public Stage() {
         added = new HashMap<>();
         removed = new HashSet<>();
+        cached = new HashMap<>();
     }
 
     public Map<String, String> getAdded() {
         return this.added;
     }
 
+    boolean isSerialized() {
+        return serialized;
+    }
+
     public Set<String> getRemoved() {
         return this.removed;
     }
@@ -56,4 +122,217 @@ public class Stage implements Serializable {
         res.addAll(added.keySet());
         return res;
     }
+
+    /**
+     * @return an empty stage keeping the stat cache of this one.
+     */
+    Stage cleared() {
+        Stage res = new Stage();
+        res.cached = cached;
+        return res;
+    }
+
+    boolean isCacheChanged() {
+        return cacheChanged;
+    }
+
+    /**
+     * @param fileNames names of working files
+     * @param dir the working directory
+     * @param hasher computes the blob ids of files, in order
+     * @return file name -> blob id, in the order of FILENAMES. Ids come
+     *         from the cache when the stat data of a file did not change,
+     *         the others are computed in one batch by HASHER and cached.
+     */
+    Map<String, String> blobIdsOf(List<String> fileNames, File dir,
+                                  Function<List<File>, List<String>> hasher) {
+        Map<String, String> res = new LinkedHashMap<>();
+        List<String> dirty = new ArrayList<>();
+        List<File> dirtyFiles = new ArrayList<>();
+        List<Entry> dirtyStats = new ArrayList<>();
+        for (String fileName : fileNames) {
+            File file = join(dir, fileName);
+            Entry now = stat(file);
+            Entry entry = cached.get(fileName);
+            if (now != null && entry != null && entry.sameStat(now)) {
+                res.put(fileName, entry.blobId);
+                continue;
+            }
+            if (entry != null) {
+                cached.remove(fileName);
+                cacheChanged = true;
+            }
+            res.put(fileName, null);
+            dirty.add(fileName);
+            dirtyFiles.add(file);
+            dirtyStats.add(now);
+        }
+        if (dirty.isEmpty()) {
+            return res;
+        }
+        long start = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        List<String> ids = hasher.apply(dirtyFiles);
+        for (int i = 0; i < dirty.size(); i += 1) {
+            String blobId = ids.get(i);
+            Entry now = dirtyStats.get(i);
+            res.put(dirty.get(i), blobId);
+            if (now != null && now.mtime < start - RACY_WINDOW) {
+                now.blobId = blobId;
+                cached.put(dirty.get(i), now);
+                cacheChanged = true;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Read the index FILE, or a stage serialized by older versions.
+     */
+    static Stage read(File file) {
+        byte[] bytes = readContents(file);
+        if (bytes.length >= 2 && bytes[0] == (byte) 0xAC && bytes[1] == (byte) 0xED) {
+            Stage res = deserialize(bytes, Stage.class);
+            res.cached = new HashMap<>();
+            res.serialized = true;
+            return res;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        for (byte b : MAGIC) {
+            if (!buf.hasRemaining() || buf.get() != b) {
+                throw new IllegalArgumentException("bad index file");
+            }
+        }
+        if (buf.get() != VERSION) {
+            throw new IllegalArgumentException("unknown index version");
+        }
+        byte[] raw = new byte[RAW_UID_LENGTH];
+        Stage res = new Stage();
+        for (int n = buf.getInt(); n > 0; n -= 1) {
+            String path = readPath(buf);
+            buf.get(raw);
+            res.added.put(path, bytesToUid(raw, 0));
+        }
+        for (int n = buf.getInt(); n > 0; n -= 1) {
+            res.removed.add(readPath(buf));
+        }
+        for (int n = buf.getInt(); n > 0; n -= 1) {
+            String path = readPath(buf);
+            Entry entry = new Entry(buf.getLong(), buf.getLong(), buf.getLong());
+            buf.get(raw);
+            entry.blobId = bytesToUid(raw, 0);
+            res.cached.put(path, entry);
+        }
+        return res;
+    }
+
+    /**
+     * Write this stage to the index FILE, paths in sorted order.
+     */
+    void write(File file) {
+        writeContents(file, (Object) encode());
+        cacheChanged = false;
+    }
+
+    /**
+     * Replace the index held by LOCK with this stage, see write(File).
+     */
+    void write(LockFile lock) {
+        lock.write((Object) encode());
+        cacheChanged = false;
+    }
+
+    private byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.write(VERSION);
+            out.writeInt(added.size());
+            for (Map.Entry<String, String> e : new TreeMap<>(added).entrySet()) {
+                writePath(out, e.getKey());
+                out.write(uidToBytes(e.getValue()));
+            }
+            out.writeInt(removed.size());
+            for (String path : new TreeSet<>(removed)) {
+                writePath(out, path);
+            }
+            out.writeInt(cached.size());
+            for (Map.Entry<String, Entry> e : new TreeMap<>(cached).entrySet()) {
+                Entry entry = e.getValue();
+                writePath(out, e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.mtime);
+                out.writeLong(entry.inode);
+                out.write(uidToBytes(entry.blobId));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writePath(DataOutputStream out, String path) throws IOException {
+        byte[] raw = path.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(raw.length);
+        out.write(raw);
+    }
+
+    private static String readPath(ByteBuffer buf) {
+        byte[] raw = new byte[buf.getInt()];
+        buf.get(raw);
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the stat data of FILE, or null if it is not a regular file.
+     */
+    private static Entry stat(File file) {
+        try {
+            Map<String, Object> attrs = Files.readAttributes(file.toPath(),
+                "unix:isRegularFile,size,lastModifiedTime,ino", LinkOption.NOFOLLOW_LINKS);
+            if (!(Boolean) attrs.get("isRegularFile")) {
+                return null;
+            }
+            return new Entry((Long) attrs.get("size"),
+                ((FileTime) attrs.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS),
+                (Long) attrs.get("ino"));
+        } catch (UnsupportedOperationException excp) {
+            // no inodes on this platform, size and mtime have to do.
+            return basicStat(file);
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    private static Entry basicStat(File file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(),
+                BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (!attrs.isRegularFile()) {
+                return null;
+            }
+            return new Entry(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), 0);
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /**
+     * Stat data of a working file and its blob id.
+     */
+    private static class Entry {
+        private final long size;
+        private final long mtime;
+        private final long inode;
+        private String blobId;
+
+        Entry(long size, long mtime, long inode) {
+            this.size = size;
+            this.mtime = mtime;
+            this.inode = inode;
+        }
+
+        boolean sameStat(Entry other) {
+            return size == other.size && mtime == other.mtime && inode == other.inode;
+        }
+    }
 }
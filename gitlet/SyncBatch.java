@@ -0,0 +1,150 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * <pre>
+ * The object files a command wrote, to be forced to disk together before
+ * anything refers to them: the stage, a branch (see LockFile).
+ *
+ * Objects are written to a temporary file renamed into place, so a crash
+ * never leaves a truncated file under an object's name, but are not
+ * forced one by one. A flush forces all the files of the batch at once,
+ * on several threads so that the file system can commit them in one
+ * journal transaction, then their directories the same way.
+ *
+ * Objects are fanned out over up to 256 directories per store, and each
+ * directory holding a new object must be forced, so a flush forces one
+ * directory per fan-out directory written to, plus the store directory
+ * holding it (it may be new), not one for the whole command. These are
+ * forced together, MAX_THREADS at a time, rather than one after the
+ * other: most file systems commit them in few journal transactions.
+ *
+ * A crash before the flush may lose objects, never a branch or stage
+ * referring to a lost one.
+ * <pre>
+ */
+class SyncBatch {
+
+    /** Most files, or directories, forced at once. */
+    private static final int MAX_THREADS = 16;
+
+    private final Set<File> files = new LinkedHashSet<>();
+
+    /** Directories of the files, and directories files were moved out of. */
+    private final Set<File> dirs = new LinkedHashSet<>();
+
+    /**
+     * Add FILE, just renamed into place, to the batch.
+     */
+    synchronized void add(File file) {
+        files.add(file);
+        dirs.add(file.getParentFile());
+        // the fan-out directory may be new.
+        dirs.add(file.getParentFile().getParentFile());
+    }
+
+    /**
+     * Add DIR, from which a file was moved or deleted, to the batch.
+     */
+    synchronized void addDirectory(File dir) {
+        dirs.add(dir);
+    }
+
+    /**
+     * Force the files of the batch and their directories, and empty it.
+     */
+    void flush() {
+        List<File> pendingFiles;
+        List<File> pendingDirs;
+        synchronized (this) {
+            pendingFiles = new ArrayList<>(files);
+            pendingDirs = new ArrayList<>(dirs);
+            files.clear();
+            dirs.clear();
+        }
+        forceAll(pendingFiles, SyncBatch::force);
+        // the entries of the directories once the files they name.
+        forceAll(pendingDirs, SyncBatch::forceDirectory);
+    }
+
+    /**
+     * Call FORCE with each of FILES, on up to MAX_THREADS threads.
+     */
+    private static void forceAll(List<File> files, Consumer<File> force) {
+        int threads = Math.min(MAX_THREADS, files.size());
+        if (threads < 2) {
+            for (File file : files) {
+                force.accept(file);
+            }
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "gitlet-sync");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>(files.size());
+            for (File file : files) {
+                futures.add(pool.submit(() -> force.accept(file)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException excp) {
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
+            }
+            throw new IllegalArgumentException(excp.getCause());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException(excp);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Force the contents of FILE to disk. A file deleted since it was
+     * written (moved on, or repacked) needs nothing.
+     */
+    static void force(File file) {
+        if (!file.isFile()) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Force the entries of DIR to disk, so the files renamed into it stay
+     * there. Systems on which a directory cannot be opened (Windows) do
+     * this with the files themselves.
+     */
+    static void forceDirectory(File dir) {
+        if (!dir.isDirectory()) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException excp) {
+            // not supported here.
+        }
+    }
+}
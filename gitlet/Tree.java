@@ -0,0 +1,167 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/**
+ * <pre>
+ * A directory of a snapshot: its entries, sorted by name, each naming a
+ * blob (a file) or another tree (a subdirectory). Trees are immutable and
+ * identified by the hash of their encoding,
+ *
+ *     magic "GLT" | version | entry count
+ *     entry: type | name length | name | id (20 bytes)
+ *
+ * counts and lengths being varints, so two snapshots share every
+ * directory in which nothing changed, and comparing two directories is
+ * comparing two ids.
+ * <pre>
+ */
+class Tree {
+
+    /** Entry type of a file. */
+    static final int BLOB = 1;
+
+    /** Entry type of a subdirectory. */
+    static final int TREE = 2;
+
+    private static final byte[] MAGIC = {'G', 'L', 'T'};
+    private static final int VERSION = 1;
+
+    /** The tree without entries. */
+    static final Tree EMPTY = new Tree(new TreeMap<>());
+
+    /** Id of the empty tree, which is never stored. */
+    static final String EMPTY_ID = EMPTY.getId();
+
+    /**
+     * An entry of a tree.
+     */
+    static class Entry {
+        private final int type;
+        private final String id;
+
+        Entry(int type, String id) {
+            this.type = type;
+            this.id = id;
+        }
+
+        int getType() {
+            return type;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        boolean isTree() {
+            return type == TREE;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry && ((Entry) o).type == type && ((Entry) o).id.equals(id);
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode() * 31 + type;
+        }
+    }
+
+    /**
+     * name -> entry, sorted by name.
+     */
+    private final TreeMap<String, Entry> entries;
+
+    private byte[] encoded;
+    private String id;
+
+    Tree(TreeMap<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * @return the entries of this tree, sorted by name.
+     */
+    Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * @return a copy of the entries, to build a changed tree from.
+     */
+    TreeMap<String, Entry> copyEntries() {
+        return new TreeMap<>(entries);
+    }
+
+    String getId() {
+        if (id == null) {
+            id = sha1(encode());
+        }
+        return id;
+    }
+
+    byte[] encode() {
+        if (encoded != null) {
+            return encoded;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            out.write(MAGIC);
+            out.write(VERSION);
+            writeVarint(out, entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                byte[] name = e.getKey().getBytes(StandardCharsets.UTF_8);
+                out.write(e.getValue().type);
+                writeVarint(out, name.length);
+                out.write(name);
+                out.write(uidToBytes(e.getValue().id));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        encoded = out.toByteArray();
+        return encoded;
+    }
+
+    static Tree decode(byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        for (byte b : MAGIC) {
+            if (!buf.hasRemaining() || buf.get() != b) {
+                throw new IllegalArgumentException("bad tree object");
+            }
+        }
+        int version = buf.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("unknown tree version " + version);
+        }
+        TreeMap<String, Entry> entries = new TreeMap<>();
+        for (long n = readVarint(buf); n > 0; n -= 1) {
+            int type = buf.get();
+            int length = (int) readVarint(buf);
+            String name = new String(bytes, buf.position(), length, StandardCharsets.UTF_8);
+            buf.position(buf.position() + length);
+            entries.put(name, new Entry(type, bytesToUid(bytes, buf.position())));
+            buf.position(buf.position() + RAW_UID_LENGTH);
+        }
+        Tree res = new Tree(entries);
+        res.encoded = bytes;
+        return res;
+    }
+}
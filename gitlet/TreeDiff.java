@@ -0,0 +1,132 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * <pre>
+ * Diff of snapshots: three-way for merge, two-way for the diff command.
+ *
+ * The trees of the base, ours and theirs are walked in lockstep, their
+ * entries being sorted by name. A subdirectory whose tree is the same in
+ * theirs as in the base or in ours holds nothing to merge and is skipped
+ * without being read, so the cost of a diff depends on what changed, not
+ * on the size of the snapshots.
+ *
+ * A name which is a file on one side and a directory on another is both:
+ * the file, absent from the sides where it is a directory, and the files
+ * below the directory, absent from the sides where it is a file.
+ * <pre>
+ */
+class TreeDiff {
+
+    /**
+     * Receives the files changed by a diff, with their blob id on each
+     * side, null where the file is absent.
+     */
+    interface Visitor {
+        void visit(String path, String base, String ours, String theirs);
+    }
+
+    private final TreeStore trees;
+
+    TreeDiff(TreeStore trees) {
+        this.trees = trees;
+    }
+
+    /**
+     * Call VISITOR, in path order, with every file whose version in
+     * THEIRS differs from both its version in BASE and in OURS: the files
+     * a merge of THEIRS into OURS has to take or to report in conflict.
+     * @param base root tree of the common ancestor
+     * @param ours root tree of the current commit
+     * @param theirs root tree of the commit merged in
+     */
+    void threeWay(String base, String ours, String theirs, Visitor visitor) {
+        walk("", base, ours, theirs, visitor);
+    }
+
+    /**
+     * Call VISITOR, in path order, with every file whose version in TO
+     * differs from its version in FROM, given as both base and ours.
+     * @param from root tree of the older snapshot
+     * @param to root tree of the newer snapshot
+     */
+    void twoWay(String from, String to, Visitor visitor) {
+        walk("", from, from, to, visitor);
+    }
+
+    private void walk(String prefix, String base, String ours, String theirs, Visitor visitor) {
+        if (theirs.equals(base) || theirs.equals(ours)) {
+            return;
+        }
+        Iterator<Map.Entry<String, Tree.Entry>> bs = trees.read(base).getEntries().entrySet().iterator();
+        Iterator<Map.Entry<String, Tree.Entry>> os = trees.read(ours).getEntries().entrySet().iterator();
+        Iterator<Map.Entry<String, Tree.Entry>> ts = trees.read(theirs).getEntries().entrySet().iterator();
+        Map.Entry<String, Tree.Entry> b = next(bs);
+        Map.Entry<String, Tree.Entry> o = next(os);
+        Map.Entry<String, Tree.Entry> t = next(ts);
+        while (b != null || o != null || t != null) {
+            String name = min(min(nameOf(b), nameOf(o)), nameOf(t));
+            Tree.Entry be = null;
+            Tree.Entry oe = null;
+            Tree.Entry te = null;
+            if (b != null && b.getKey().equals(name)) {
+                be = b.getValue();
+                b = next(bs);
+            }
+            if (o != null && o.getKey().equals(name)) {
+                oe = o.getValue();
+                o = next(os);
+            }
+            if (t != null && t.getKey().equals(name)) {
+                te = t.getValue();
+                t = next(ts);
+            }
+            if (Objects.equals(te, be) || Objects.equals(te, oe)) {
+                continue;
+            }
+            String path = prefix + name;
+            String bf = blobOf(be);
+            String of = blobOf(oe);
+            String tf = blobOf(te);
+            if (!Objects.equals(tf, bf) && !Objects.equals(tf, of)) {
+                visitor.visit(path, bf, of, tf);
+            }
+            if (isTree(be) || isTree(oe) || isTree(te)) {
+                walk(path + "/", treeOf(be), treeOf(oe), treeOf(te), visitor);
+            }
+        }
+    }
+
+    private static Map.Entry<String, Tree.Entry> next(Iterator<Map.Entry<String, Tree.Entry>> it) {
+        return it.hasNext() ? it.next() : null;
+    }
+
+    private static String nameOf(Map.Entry<String, Tree.Entry> e) {
+        return e == null ? null : e.getKey();
+    }
+
+    /**
+     * @return the least of two names, null standing for no name.
+     */
+    private static String min(String a, String b) {
+        if (a == null) {
+            return b;
+        }
+        return b == null || a.compareTo(b) <= 0 ? a : b;
+    }
+
+    private static boolean isTree(Tree.Entry e) {
+        return e != null && e.isTree();
+    }
+
+    private static String blobOf(Tree.Entry e) {
+        return e == null || e.isTree() ? null : e.getId();
+    }
+
+    private static String treeOf(Tree.Entry e) {
+        return isTree(e) ? e.getId() : Tree.EMPTY_ID;
+    }
+}
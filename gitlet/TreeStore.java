@@ -0,0 +1,184 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * <pre>
+ * The trees of a repository, stored like blobs (see ObjectStore) under
+ * their own directory.
+ *
+ * Paths are relative to the working directory, with "/" between their
+ * names. A snapshot is changed by rewriting only the trees on the paths
+ * to what changed, every other subtree is shared with the snapshot it
+ * came from.
+ * <pre>
+ */
+class TreeStore {
+
+    private final ObjectStore store;
+
+    /**
+     * Trees recently read or written, by id.
+     */
+    private final ObjectCache cache;
+
+    TreeStore(ObjectStore store) {
+        this(store, new ObjectCache(ObjectCache.DEFAULT_CAPACITY));
+    }
+
+    TreeStore(ObjectStore store, ObjectCache cache) {
+        this.store = store;
+        this.cache = cache;
+    }
+
+    ObjectStore getStore() {
+        return store;
+    }
+
+    boolean contains(String id) {
+        // not the cache: it may outlive the store (see Daemon).
+        return id.equals(Tree.EMPTY_ID) || store.contains(id);
+    }
+
+    Tree read(String id) {
+        if (id.equals(Tree.EMPTY_ID)) {
+            return Tree.EMPTY;
+        }
+        Tree tree = cache.get(id, Tree.class);
+        if (tree == null) {
+            byte[] bytes = store.read(id);
+            tree = Tree.decode(bytes);
+            cache.put(id, tree, weightOf(bytes));
+        }
+        return tree;
+    }
+
+    /**
+     * Store TREE, unless it is empty or stored already.
+     * @return the id of TREE.
+     */
+    String write(Tree tree) {
+        String id = tree.getId();
+        if (tree.isEmpty() || store.contains(id)) {
+            return id;
+        }
+        byte[] bytes = tree.encode();
+        store.write(id, new ByteArrayInputStream(bytes), bytes.length);
+        cache.put(id, tree, weightOf(bytes));
+        return id;
+    }
+
+    /**
+     * @return the weight in the cache of the tree encoded as BYTES: its
+     *         entries take about twice their encoded size.
+     */
+    private static long weightOf(byte[] bytes) {
+        return 3L * bytes.length;
+    }
+
+    /**
+     * @param treeId root of a snapshot
+     * @return path -> blob id of every file of the snapshot.
+     */
+    Map<String, String> flatten(String treeId) {
+        Map<String, String> res = new HashMap<>();
+        flatten(treeId, "", res);
+        return res;
+    }
+
+    private void flatten(String treeId, String prefix, Map<String, String> res) {
+        for (Map.Entry<String, Tree.Entry> e : read(treeId).getEntries().entrySet()) {
+            String path = prefix + e.getKey();
+            if (e.getValue().isTree()) {
+                flatten(e.getValue().getId(), path + "/", res);
+            } else {
+                res.put(path, e.getValue().getId());
+            }
+        }
+    }
+
+    /**
+     * @param blobs path -> blob id of every file of a snapshot
+     * @return the id of the root tree of the snapshot, written.
+     */
+    String fromBlobs(Map<String, String> blobs) {
+        return update(Tree.EMPTY_ID, blobs);
+    }
+
+    /**
+     * <pre>
+     * Apply CHANGES to the snapshot TREEID, writing the trees that change.
+     * A file replaces a directory of the same name and the other way
+     * around; directories left empty disappear.
+     * <pre>
+     * @param treeId root of the snapshot
+     * @param changes path -> new blob id, or null to remove the file
+     * @return the id of the root of the new snapshot.
+     */
+    String update(String treeId, Map<String, String> changes) {
+        return update(treeId, new TreeMap<>(changes));
+    }
+
+    private String update(String treeId, SortedMap<String, String> changes) {
+        TreeMap<String, Tree.Entry> entries = read(treeId).copyEntries();
+        // first name -> changes below it, relative to it.
+        Map<String, SortedMap<String, String>> below = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash >= 0) {
+                below.computeIfAbsent(path.substring(0, slash), k -> new TreeMap<>())
+                    .put(path.substring(slash + 1), change.getValue());
+            } else if (change.getValue() == null) {
+                Tree.Entry entry = entries.get(path);
+                if (entry != null && !entry.isTree()) {
+                    entries.remove(path);
+                }
+            } else {
+                entries.put(path, new Tree.Entry(Tree.BLOB, change.getValue()));
+            }
+        }
+        for (Map.Entry<String, SortedMap<String, String>> e : below.entrySet()) {
+            Tree.Entry entry = entries.get(e.getKey());
+            boolean isFile = entry != null && !entry.isTree();
+            String newId = update(entry == null || isFile ? Tree.EMPTY_ID : entry.getId(),
+                e.getValue());
+            if (!newId.equals(Tree.EMPTY_ID)) {
+                entries.put(e.getKey(), new Tree.Entry(Tree.TREE, newId));
+            } else if (!isFile) {
+                entries.remove(e.getKey());
+            }
+        }
+        return write(new Tree(entries));
+    }
+
+    /**
+     * Call VISITOR with every tree below TREEID, TREEID included,
+     * skipping the subtrees whose id is in SEEN (to which ids are added).
+     */
+    void walk(String treeId, Set<String> seen, Consumer<Tree> visitor) {
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(treeId);
+        while (!stack.isEmpty()) {
+            String id = stack.pop();
+            if (id.equals(Tree.EMPTY_ID) || !seen.add(id)) {
+                continue;
+            }
+            Tree tree = read(id);
+            visitor.accept(tree);
+            for (Tree.Entry entry : tree.getEntries().values()) {
+                if (entry.isTree()) {
+                    stack.push(entry.getId());
+                }
+            }
+        }
+    }
+}
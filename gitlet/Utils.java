@@ -1,21 +1,30 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.Formatter;
 import java.util.List;
 import java.util.function.Supplier;
 
@@ -32,28 +41,83 @@ class Utils {
 
     /* SHA-1 HASH VALUES. */
 
+    /** One reusable SHA-1 digest per thread, see HashPool. */
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    });
+
     /** Returns the SHA-1 hash of the concatenation of VALS, which may
      *  be any mixture of byte arrays and Strings. */
     static String sha1(Object... vals) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            for (Object val : vals) {
-                if (val instanceof byte[]) {
-                    md.update((byte[]) val);
-                } else if (val instanceof String) {
-                    md.update(((String) val).getBytes(StandardCharsets.UTF_8));
-                } else {
-                    throw new IllegalArgumentException("improper type to sha1");
+        MessageDigest md = SHA1.get();
+        md.reset();
+        for (Object val : vals) {
+            if (val instanceof byte[]) {
+                md.update((byte[]) val);
+            } else if (val instanceof String) {
+                md.update(((String) val).getBytes(StandardCharsets.UTF_8));
+            } else {
+                throw new IllegalArgumentException("improper type to sha1");
+            }
+        }
+        return toHex(md.digest(), 0, RAW_UID_LENGTH);
+    }
+
+    /** Files at least this long are hashed through memory-mapped chunks. */
+    private static final long MAP_THRESHOLD = 1 << 20;
+
+    /** Length of the chunks a large file is mapped in. */
+    private static final long MAP_CHUNK = 1 << 26;
+
+    /** Returns the SHA-1 hash of the contents of FILE, read in fixed-size
+     *  chunks so that memory use does not depend on the size of FILE. */
+    static String sha1(File file) {
+        MessageDigest md = SHA1.get();
+        md.reset();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD) {
+                for (long pos = 0; pos < size; pos += MAP_CHUNK) {
+                    md.update(channel.map(FileChannel.MapMode.READ_ONLY, pos,
+                        Math.min(MAP_CHUNK, size - pos)));
+                }
+            } else {
+                ByteBuffer buf = ByteBuffer.allocate((int) Math.max(size, 1));
+                while (channel.read(buf) > 0) {
+                    if (!buf.hasRemaining()) {
+                        buf.flip();
+                        md.update(buf);
+                        buf.clear();
+                    }
                 }
+                buf.flip();
+                md.update(buf);
             }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return toHex(md.digest(), 0, RAW_UID_LENGTH);
+    }
+
+    /** Returns the SHA-1 hash of PREFIX followed by the rest of IN,
+     *  which is read but not closed. */
+    static String sha1(String prefix, InputStream in) {
+        MessageDigest md = SHA1.get();
+        md.reset();
+        md.update(prefix.getBytes(StandardCharsets.UTF_8));
+        byte[] buf = new byte[1 << 16];
+        try {
+            for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+                md.update(buf, 0, n);
             }
-            return result.toString();
-        } catch (NoSuchAlgorithmException excp) {
-            throw new IllegalArgumentException("System does not support SHA-1");
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
+        return toHex(md.digest(), 0, RAW_UID_LENGTH);
     }
 
     /** Returns the SHA-1 hash of the concatenation of the strings in
@@ -62,6 +126,39 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** Number of bytes of a raw SHA-1 UID. */
+    static final int RAW_UID_LENGTH = UID_LENGTH / 2;
+
+    /** Returns the raw bytes of the hexadecimal UID ID. */
+    static byte[] uidToBytes(String id) {
+        byte[] raw = new byte[RAW_UID_LENGTH];
+        for (int i = 0; i < RAW_UID_LENGTH; i += 1) {
+            raw[i] = (byte) ((Character.digit(id.charAt(2 * i), 16) << 4)
+                | Character.digit(id.charAt(2 * i + 1), 16));
+        }
+        return raw;
+    }
+
+    /** Returns the hexadecimal UID of the RAW_UID_LENGTH bytes of RAW
+     *  starting at OFFSET. */
+    static String bytesToUid(byte[] raw, int offset) {
+        return toHex(raw, offset, RAW_UID_LENGTH);
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Returns the lowercase hexadecimal numeral of the LENGTH bytes of
+     *  RAW starting at OFFSET. */
+    static String toHex(byte[] raw, int offset, int length) {
+        char[] hex = new char[2 * length];
+        for (int i = 0; i < length; i += 1) {
+            int b = raw[offset + i] & 0xFF;
+            hex[2 * i] = HEX_DIGITS[b >>> 4];
+            hex[2 * i + 1] = HEX_DIGITS[b & 0xF];
+        }
+        return new String(hex);
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -221,6 +318,62 @@ class Utils {
 
 
 
+    /** Return an object of type T deserialized from BYTES, casting it to
+     *  EXPECTEDCLASS.  Throws IllegalArgumentException in case of problems. */
+    static <T extends Serializable> T deserialize(byte[] bytes,
+        Class<T> expectedClass) {
+        try {
+            ObjectInputStream in = new
+                ObjectInputStream(new ByteArrayInputStream(bytes));
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            return result;
+        } catch (IOException | ClassCastException
+        | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /* VARIABLE-LENGTH INTEGERS */
+
+    /** Write the non-negative VALUE to OUT, seven bits per byte, low
+     *  bits first; the high bit of a byte is set when more follow. */
+    static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /** Read a value written by writeVarint from IN. */
+    static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("truncated varint");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /** Read a value written by writeVarint from BUF, advancing its
+     *  position. */
+    static long readVarint(ByteBuffer buf) {
+        long value = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = buf.get() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
     /* MESSAGES AND ERROR REPORTING */
 
     /** Return a GitletException whose message is composed from MSG and ARGS as
@@ -236,16 +389,42 @@ class Utils {
         System.out.println();
     }
 
+    /** Return a buffered writer on System.out as it is now (see Daemon),
+     *  for output written as it is produced. It is to be flushed, not
+     *  closed. */
+    static Writer stdout() {
+        return new BufferedWriter(new OutputStreamWriter(System.out));
+    }
+
+    /** Write STR to OUT, a writer on System.out. */
+    static void write(Writer out, String str) {
+        try {
+            out.write(str);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Flush OUT, a writer on System.out. */
+    static void flush(Writer out) {
+        try {
+            out.flush();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
 
     /**
-     * Print a message and exit with status code 0.
+     * Abort the command with a message, which Main prints before exiting
+     * with status code 0 (see Main.main). Throwing rather than exiting
+     * leaves a process running several commands alive.
      *
      * @param message String to print
      * @param args Arguments referenced by the format specifiers in the format string
      */
     public static void exit(String message, Object... args) {
-        message(message, args);
-        System.exit(0);
+        throw error(message, args);
     }
 
     /**